@@ -28,22 +28,30 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
@@ -73,6 +81,28 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
     private static final String FIELD_KEY = "key";
     private static final String FIELD_VALUE = "value";
+    private static final String FIELD_CLEAR = "clear";
+
+    private static final String QUERY_KEY = "key";
+    private static final String QUERY_TYPE = "type";
+    private static final String QUERY_VERSION = "version";
+    private static final String QUERY_FIRST_VERSION = "firstVersion";
+
+    private static final long NOTIFY_DELAY_MS = 50;
+
+    // call() protocol, the argument is always the preferences file name
+    private static final String METHOD_GET = "get";
+    private static final String METHOD_GET_ALL = "getAll";
+    private static final String METHOD_PUT = "put";
+    private static final String METHOD_REMOVE = "remove";
+    private static final String METHOD_VERSION = "version";
+
+    private static final String EXTRA_KEYS = "keys";
+    private static final String EXTRA_TYPES = "types";
+    private static final String EXTRA_VALUES = "values";
+    private static final String EXTRA_REMOVED = "removed";
+    private static final String EXTRA_CLEAR = "clear";
+    private static final String EXTRA_VERSION = "version";
 
     private static final String[] PROJECTION = {
             FIELD_KEY,
@@ -82,21 +112,73 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
     private Context mContext;
     private Map<String, SharedPreferences> mPreferences = new HashMap<>();
 
+    // Version stamp of each file, bumped by every write made through the
+    // provider. It starts from the boot clock so a restarted provider never
+    // hands out a stamp an older instance already used.
+    private Map<String, Long> mVersions = new HashMap<>();
+    private long mInitialVersion;
+
+    // Changed keys of a file that haven't been announced yet
+    private static class PendingChange {
+        final Set<String> keys = new HashSet<>();
+        long firstVersion;
+        long lastVersion;
+
+        PendingChange(long version) {
+            firstVersion = version;
+            lastVersion = version;
+        }
+    }
+
+    private final Map<String, PendingChange> mPendingChanges = new HashMap<>();
+
+    private static final ScheduledExecutorService sNotifyExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MultiProcessPreferences-notify");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     @Override
     @SuppressWarnings("ConstantConditions")
     public boolean onCreate() {
         mContext = getContext().getApplicationContext();
+        mInitialVersion = SystemClock.elapsedRealtimeNanos();
         return false;
     }
 
-    private synchronized SharedPreferences getSharedPreferences(Uri uri) {
-        String name = decodePath(uri.getPathSegments().get(1));
+    private SharedPreferences getSharedPreferences(Uri uri) {
+        return getSharedPreferences(getName(uri));
+    }
+
+    private synchronized SharedPreferences getSharedPreferences(String name) {
         if (!mPreferences.containsKey(name)) {
             mPreferences.put(name, mContext.getSharedPreferences(name, Context.MODE_PRIVATE));
         }
         return mPreferences.get(name);
     }
 
+    private static String getName(Uri uri) {
+        return decodePath(uri.getPathSegments().get(1));
+    }
+
+    private synchronized long getVersion(String name) {
+        Long version = mVersions.get(name);
+        return version != null ? version : mInitialVersion;
+    }
+
+    // Applies an edit and bumps the version in one step, so a reader never
+    // gets the new contents with the old version or the other way around
+    private synchronized long commit(String name, SharedPreferences.Editor editor) {
+        editor.apply();
+        long version = getVersion(name) + 1;
+        mVersions.put(name, version);
+        return version;
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
@@ -111,7 +193,6 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
     @Nullable
     @Override
-    @SuppressWarnings("unchecked")
     public Cursor query(@NonNull Uri uri, String[] projection,
                         String selection, String[] selectionArgs, String sortOrder) {
 
@@ -119,33 +200,35 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         int match = sURLMatcher.match(uri);
         switch (match) {
             case PREFERENCES_DATA:
-                Map<String, ?> map = getSharedPreferences(uri).getAll();
+                SharedPreferences preferences = getSharedPreferences(uri);
+                List<String> keys = uri.getQueryParameters(QUERY_KEY);
                 c = new MatrixCursor(PROJECTION);
-                for (String key : map.keySet()) {
-                    MatrixCursor.RowBuilder row = c.newRow();
-                    row.add(key);
-                    Object val = map.get(key);
-                    if (val instanceof Set<?>) {
-                        row.add(marshallSet((Set<String>) val));
-                    } else {
-                        row.add(val);
+                if (keys.isEmpty()) {
+                    Map<String, ?> map = preferences.getAll();
+                    for (Map.Entry<String, ?> entry : map.entrySet()) {
+                        addRow(c, entry.getKey(), entry.getValue());
+                    }
+                } else {
+                    // Only the requested keys, each with the type the caller expects
+                    List<String> types = uri.getQueryParameters(QUERY_TYPE);
+                    for (int i = 0; i < keys.size(); i++) {
+                        String key = keys.get(i);
+                        int type = i < types.size() ? parseType(types.get(i)) : PreferenceCodec.TYPE_UNKNOWN;
+                        Object val = readValue(preferences, key, type);
+                        if (val != null) {
+                            addRow(c, key, val);
+                        }
                     }
                 }
                 break;
 
             case PREFERENCES_DATA_ID:
                 final String key = decodePath(uri.getPathSegments().get(3));
-                map = getSharedPreferences(uri).getAll();
-                if (map.containsKey(key)) {
+                Object val = readValue(getSharedPreferences(uri), key,
+                        parseType(uri.getQueryParameter(QUERY_TYPE)));
+                if (val != null) {
                     c = new MatrixCursor(PROJECTION);
-                    MatrixCursor.RowBuilder row = c.newRow();
-                    row.add(key);
-                    Object val = map.get(key);
-                    if (val instanceof Set<?>) {
-                        row.add(marshallSet((Set<String>) val));
-                    } else {
-                        row.add(val);
-                    }
+                    addRow(c, key, val);
                 }
                 break;
         }
@@ -163,32 +246,13 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         String key = null;
         int match = sURLMatcher.match(uri);
         int count = 0;
+        long version = 0;
         switch (match) {
             case PREFERENCES_DATA:
                 SharedPreferences.Editor editor = getSharedPreferences(uri).edit();
                 key = (String) values.get(FIELD_KEY);
-                Object value = values.get(FIELD_VALUE);
-                if (value != null) {
-                    if (value instanceof Boolean) {
-                        editor.putBoolean(key, (Boolean) value);
-                    } else if (value instanceof Long) {
-                        editor.putLong(key, (Long) value);
-                    } else if (value instanceof Integer) {
-                        editor.putInt(key, (Integer) value);
-                    } else if (value instanceof Float) {
-                        editor.putFloat(key, (Float) value);
-                    } else {
-                        // Test if the preference is a json array
-                        try {
-                            editor.putStringSet(key, unmarshallSet((String) value));
-                        } catch (JSONException e) {
-                            editor.putString(key, (String) value);
-                        }
-                    }
-                } else {
-                    editor.remove(key);
-                }
-                editor.apply();
+                putValue(editor, key, values.get(FIELD_VALUE));
+                version = commit(getName(uri), editor);
                 count = 1;
                 break;
             default:
@@ -198,9 +262,8 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
         // Notify
         if (count > 0) {
-            Uri notifyUri = uri.buildUpon().appendPath(encodePath(key)).build();
-            notifyChange(notifyUri);
-            return notifyUri;
+            notifyChange(getName(uri), Collections.singleton(key), version);
+            return uri.buildUpon().appendPath(encodePath(key)).build();
         }
         return null;
     }
@@ -208,16 +271,23 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
         int count = 0;
+        long version = 0;
+        String key = null;
         switch (sURLMatcher.match(uri)) {
             case PREFERENCES_DATA:
-                count = getSharedPreferences(uri).getAll().size();
-                getSharedPreferences(uri).edit().clear().apply();
-                break;
+                // The keys are needed anyway to tell listeners what went away
+                Set<String> keys = getSharedPreferences(uri).getAll().keySet();
+                count = keys.size();
+                version = commit(getName(uri), getSharedPreferences(uri).edit().clear());
+                if (count > 0) {
+                    notifyChange(getName(uri), keys, version);
+                }
+                return count;
             case PREFERENCES_DATA_ID:
-                final String key = decodePath(uri.getPathSegments().get(3));
+                key = decodePath(uri.getPathSegments().get(3));
                 if (getSharedPreferences(uri).contains(key)) {
-                    getSharedPreferences(uri).edit().remove(key).apply();
-                    count = 0;
+                    version = commit(getName(uri), getSharedPreferences(uri).edit().remove(key));
+                    count = 1;
                 }
                 break;
             default:
@@ -226,7 +296,7 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         }
 
         if (count > 0) {
-            notifyChange(uri);
+            notifyChange(getName(uri), Collections.singleton(key), version);
         }
         return count;
     }
@@ -235,34 +305,16 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
     public int update(@NonNull Uri uri, ContentValues values,
                       String selection, String[] selectionArgs) {
         int count = 0;
+        long version = 0;
+        String key = null;
         int match = sURLMatcher.match(uri);
         switch (match) {
             case PREFERENCES_DATA_ID:
                 SharedPreferences.Editor editor = getSharedPreferences(uri).edit();
-                final String key = decodePath(uri.getPathSegments().get(3));
-                Object value = values.get(FIELD_VALUE);
-                if (value != null) {
-                    if (value instanceof Boolean) {
-                        editor.putBoolean(key, (Boolean) value);
-                    } else if (value instanceof Long) {
-                        editor.putLong(key, (Long) value);
-                    } else if (value instanceof Integer) {
-                        editor.putInt(key, (Integer) value);
-                    } else if (value instanceof Float) {
-                        editor.putFloat(key, (Float) value);
-                    } else {
-                        // Test if the preference is a json array
-                        try {
-                            editor.putStringSet(key, unmarshallSet((String) value));
-                        } catch (JSONException e) {
-                            editor.putString(key, (String) value);
-                        }
-                    }
-                } else {
-                    editor.remove(key);
-                }
+                key = decodePath(uri.getPathSegments().get(3));
+                putValue(editor, key, values.get(FIELD_VALUE));
                 count = 1;
-                editor.apply();
+                version = commit(getName(uri), editor);
                 break;
             default:
                 Log.w(TAG, "Cannot update URI: " + uri);
@@ -270,34 +322,274 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         }
 
         if (count > 0) {
-            notifyChange(uri);
+            notifyChange(getName(uri), Collections.singleton(key), version);
         }
         return count;
     }
 
-    private void notifyChange(Uri uri) {
-        mContext.getContentResolver().notifyChange(uri, null);
+    // Commits a whole editor session in one transaction with one notification.
+    // A row holding FIELD_CLEAR clears the file, a row without a value removes
+    // its key, any other row puts its value.
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        if (sURLMatcher.match(uri) != PREFERENCES_DATA) {
+            Log.w(TAG, "Cannot bulk insert URI: " + uri);
+            return 0;
+        }
+
+        SharedPreferences preferences = getSharedPreferences(uri);
+        SharedPreferences.Editor editor = preferences.edit();
+        Set<String> changed = new HashSet<>();
+        for (ContentValues row : values) {
+            if (row.containsKey(FIELD_CLEAR)) {
+                changed.addAll(preferences.getAll().keySet());
+                editor.clear();
+                continue;
+            }
+            String key = row.getAsString(FIELD_KEY);
+            putValue(editor, key, row.get(FIELD_VALUE));
+            changed.add(key);
+        }
+        long version = commit(getName(uri), editor);
+
+        if (!changed.isEmpty()) {
+            notifyChange(getName(uri), changed, version);
+        }
+        return values.length;
     }
 
-    private static String marshallSet(Set<String> set) {
-        JSONArray array = new JSONArray();
-        for (String value : set) {
-            array.put(value);
+    // Parcel based fast path next to the cursor API. Values travel as
+    // PreferenceCodec blobs in a bundle keyed by preference key, and every
+    // reply carries the version stamp of the file.
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (arg == null) {
+            Log.w(TAG, "Missing preferences name for call: " + method);
+            return null;
         }
-        return array.toString();
+        SharedPreferences preferences = getSharedPreferences(arg);
+        Bundle result = new Bundle();
+        switch (method) {
+            case METHOD_GET_ALL:
+                synchronized (this) {
+                    Bundle values = new Bundle();
+                    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                        values.putByteArray(entry.getKey(), PreferenceCodec.encode(entry.getValue()));
+                    }
+                    result.putBundle(EXTRA_VALUES, values);
+                    result.putLong(EXTRA_VERSION, getVersion(arg));
+                }
+                break;
+            case METHOD_GET:
+                String[] keys = extras != null ? extras.getStringArray(EXTRA_KEYS) : null;
+                int[] types = extras != null ? extras.getIntArray(EXTRA_TYPES) : null;
+                synchronized (this) {
+                    Bundle values = new Bundle();
+                    for (int i = 0; keys != null && i < keys.length; i++) {
+                        int type = types != null && i < types.length
+                                ? types[i] : PreferenceCodec.TYPE_UNKNOWN;
+                        Object val = readValue(preferences, keys[i], type);
+                        if (val != null) {
+                            values.putByteArray(keys[i], PreferenceCodec.encode(val));
+                        }
+                    }
+                    result.putBundle(EXTRA_VALUES, values);
+                    result.putLong(EXTRA_VERSION, getVersion(arg));
+                }
+                break;
+            case METHOD_PUT:
+            case METHOD_REMOVE:
+                result.putLong(EXTRA_VERSION,
+                        write(arg, preferences, extras, method.equals(METHOD_REMOVE)));
+                break;
+            case METHOD_VERSION:
+                result.putLong(EXTRA_VERSION, getVersion(arg));
+                break;
+            default:
+                return super.call(method, arg, extras);
+        }
+        return result;
     }
 
-    private static Set<String> unmarshallSet(String value) throws JSONException {
-        JSONArray array = new JSONArray(value);
-        int size = array.length();
-        Set<String> set = new HashSet<>(size);
-        for (int i = 0; i < size; i++) {
-            set.add(array.getString(i));
+    // Applies a put or remove call as one edit with one notification, and
+    // returns the version of the file after it
+    private long write(String name, SharedPreferences preferences, Bundle extras, boolean remove) {
+        SharedPreferences.Editor editor = preferences.edit();
+        Set<String> changed = new HashSet<>();
+        long version;
+        synchronized (this) {
+            if (extras != null) {
+                if (!remove && extras.getBoolean(EXTRA_CLEAR)) {
+                    changed.addAll(preferences.getAll().keySet());
+                    editor.clear();
+                }
+                String[] removed = extras.getStringArray(remove ? EXTRA_KEYS : EXTRA_REMOVED);
+                if (removed != null) {
+                    for (String key : removed) {
+                        editor.remove(key);
+                        changed.add(key);
+                    }
+                }
+                Bundle values = remove ? null : extras.getBundle(EXTRA_VALUES);
+                if (values != null) {
+                    for (String key : values.keySet()) {
+                        putValue(editor, key, values.getByteArray(key));
+                        changed.add(key);
+                    }
+                }
+            }
+            if (changed.isEmpty()) {
+                return getVersion(name);
+            }
+            version = commit(name, editor);
         }
-        return set;
+        notifyChange(name, changed, version);
+        return version;
     }
 
-    private static Map<String, MultiProcessSharedPreferences> sInstances = new HashMap<>();
+    // Values normally arrive encoded by PreferenceCodec, plain values are
+    // still accepted from callers that use the ContentValues types directly
+    @SuppressWarnings("unchecked")
+    private static void putValue(SharedPreferences.Editor editor, String key, Object value) {
+        if (value instanceof byte[]) {
+            value = PreferenceCodec.decode((byte[]) value);
+            if (value == null) {
+                Log.w(TAG, "Ignoring malformed value for key " + key);
+                return;
+            }
+        }
+        if (value != null) {
+            if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof Set<?>) {
+                editor.putStringSet(key, (Set<String>) value);
+            } else {
+                editor.putString(key, value.toString());
+            }
+        } else {
+            editor.remove(key);
+        }
+    }
+
+    // Reads one key with the getter of its expected type, so the provider
+    // never copies the whole file to answer for a single value. Returns null
+    // if the key doesn't exist.
+    // Types tried for a key of unknown type, the most common ones first
+    private static final int[] sProbeOrder = {
+            PreferenceCodec.TYPE_STRING, PreferenceCodec.TYPE_BOOLEAN, PreferenceCodec.TYPE_INT,
+            PreferenceCodec.TYPE_LONG, PreferenceCodec.TYPE_FLOAT, PreferenceCodec.TYPE_SET
+    };
+
+    // Reads one value without copying the file through getAll(). If the
+    // type is unknown or wrong, the typed getters are tried in turn: each is
+    // a single lookup whose cast fails fast on any other type.
+    private static Object readValue(SharedPreferences preferences, String key, int type) {
+        if (!preferences.contains(key)) {
+            return null;
+        }
+        Object value = readTyped(preferences, key, type);
+        for (int i = 0; value == null && i < sProbeOrder.length; i++) {
+            if (sProbeOrder[i] != type) {
+                value = readTyped(preferences, key, sProbeOrder[i]);
+            }
+        }
+        return value;
+    }
+
+    private static Object readTyped(SharedPreferences preferences, String key, int type) {
+        try {
+            switch (type) {
+                case PreferenceCodec.TYPE_STRING:
+                    return preferences.getString(key, null);
+                case PreferenceCodec.TYPE_SET:
+                    return preferences.getStringSet(key, null);
+                case PreferenceCodec.TYPE_INT:
+                    return preferences.getInt(key, 0);
+                case PreferenceCodec.TYPE_LONG:
+                    return preferences.getLong(key, 0);
+                case PreferenceCodec.TYPE_FLOAT:
+                    return preferences.getFloat(key, 0);
+                case PreferenceCodec.TYPE_BOOLEAN:
+                    return preferences.getBoolean(key, false);
+                default:
+                    return null;
+            }
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static void addRow(MatrixCursor c, String key, Object val) {
+        MatrixCursor.RowBuilder row = c.newRow();
+        row.add(key);
+        row.add(PreferenceCodec.encode(val));
+    }
+
+    private static int parseType(String type) {
+        if (type == null || type.length() != 1 || !Character.isDigit(type.charAt(0))) {
+            return PreferenceCodec.TYPE_UNKNOWN;
+        }
+        return type.charAt(0) - '0';
+    }
+
+    // Queues the keys a write changed. Writes to a file within
+    // NOTIFY_DELAY_MS of each other are announced together with one uri
+    // listing every changed key and the range of versions they produced, so
+    // a burst of writes wakes each observing process only once.
+    private void notifyChange(final String name, Collection<String> keys, long version) {
+        synchronized (mPendingChanges) {
+            PendingChange change = mPendingChanges.get(name);
+            if (change == null) {
+                change = new PendingChange(version);
+                mPendingChanges.put(name, change);
+                sNotifyExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushChange(name);
+                    }
+                }, NOTIFY_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            change.keys.addAll(keys);
+            change.firstVersion = Math.min(change.firstVersion, version);
+            change.lastVersion = Math.max(change.lastVersion, version);
+        }
+    }
+
+    private void flushChange(String name) {
+        PendingChange change;
+        synchronized (mPendingChanges) {
+            change = mPendingChanges.remove(name);
+        }
+        if (change == null) {
+            return;
+        }
+        Uri.Builder builder = resolveUri(null, name).buildUpon();
+        for (String key : change.keys) {
+            builder.appendQueryParameter(QUERY_KEY, key);
+        }
+        builder.appendQueryParameter(QUERY_FIRST_VERSION, String.valueOf(change.firstVersion));
+        builder.appendQueryParameter(QUERY_VERSION, String.valueOf(change.lastVersion));
+        mContext.getContentResolver().notifyChange(builder.build(), null);
+    }
+
+    private static final Map<String, MultiProcessSharedPreferences> sInstances = new HashMap<>();
+
+    private static final ExecutorService sApplyExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MultiProcessPreferences-apply");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     public static MultiProcessSharedPreferences getDefaultSharedPreferences(Context context) {
         final String defaultName;
@@ -309,28 +601,64 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         return getSharedPreferences(context, defaultName);
     }
 
-    public static MultiProcessSharedPreferences getSharedPreferences(Context context, String name) {
-        if (!sInstances.containsKey(name)) {
-            sInstances.put(name, new MultiProcessSharedPreferences(
-                    context.getApplicationContext(), name));
+    // Synchronized as callers come from several threads, and a second instance
+    // would register its own observer and keep its own snapshot and versions
+    public static synchronized MultiProcessSharedPreferences getSharedPreferences(
+            Context context, String name) {
+        MultiProcessSharedPreferences preferences = sInstances.get(name);
+        if (preferences == null) {
+            preferences = new MultiProcessSharedPreferences(context.getApplicationContext(), name);
+            sInstances.put(name, preferences);
         }
-        return sInstances.get(name);
+        return preferences;
     }
 
     public static class MultiProcessSharedPreferences implements SharedPreferences {
         private final String mPreferencesFileName;
 
+        // One editor session, kept so it can be replayed over a fresh snapshot
+        // until the provider has stored it
+        private static class Edit {
+            final boolean clear;
+            final List<Pair<String, Object>> values;
+            final Set<String> removed;
+
+            Edit(boolean clear, List<Pair<String, Object>> values, Set<String> removed) {
+                this.clear = clear;
+                this.values = values;
+                this.removed = removed;
+            }
+
+            boolean isEmpty() {
+                return !clear && values.isEmpty() && removed.isEmpty();
+            }
+
+            void applyTo(Map<String, Object> map) {
+                if (clear) {
+                    map.clear();
+                }
+                for (Pair<String, Object> v : values) {
+                    if (v.second != null) {
+                        map.put(v.first, v.second);
+                    } else {
+                        map.remove(v.first);
+                    }
+                }
+                for (String key : removed) {
+                    map.remove(key);
+                }
+            }
+        }
+
         private static class MultiProcessEditor implements Editor {
 
-            private final Context mContext;
-            private final String mPreferencesFileName;
+            private final MultiProcessSharedPreferences mPreferences;
             private final List<Pair<String, Object>> mValues;
             private final Set<String> mRemovedEntries;
             private boolean mClearAllFlag;
 
-            private MultiProcessEditor(Context context, String name) {
-                mContext = context;
-                mPreferencesFileName = name;
+            private MultiProcessEditor(MultiProcessSharedPreferences preferences) {
+                mPreferences = preferences;
                 mValues = new ArrayList<>();
                 mRemovedEntries = new HashSet<>();
                 mClearAllFlag = false;
@@ -384,7 +712,6 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
                 while (it.hasNext()) {
                     if (it.next().first.equals(key)) {
                         it.remove();
-                        break;
                     }
                 }
                 mRemovedEntries.add(key);
@@ -400,51 +727,79 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
             }
 
             @Override
-            @SuppressWarnings("unchecked")
             public boolean commit() {
-                if (mClearAllFlag) {
-                    Uri uri = resolveUri(null, mPreferencesFileName);
-                    mContext.getContentResolver().delete(uri, null, null);
+                Edit edit = drain();
+                if (edit.isEmpty()) {
+                    return true;
+                }
+                Bundle extras = toExtras(edit);
+                mPreferences.beginEdit(edit);
+                try {
+                    return mPreferences.put(extras);
+                } finally {
+                    mPreferences.endEdit(edit);
+                }
+            }
+
+            @Override
+            public void apply() {
+                final Edit edit = drain();
+                if (edit.isEmpty()) {
+                    return;
                 }
+                final Bundle extras = toExtras(edit);
+                // Reads in this process see the edit right away
+                mPreferences.beginEdit(edit);
+                // A single writer thread keeps applies in call order
+                sApplyExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mPreferences.put(extras);
+                        } finally {
+                            mPreferences.endEdit(edit);
+                        }
+                    }
+                });
+            }
+
+            // Takes the pending edits and resets the editor
+            private Edit drain() {
+                Edit edit = new Edit(mClearAllFlag, new ArrayList<>(mValues),
+                        new HashSet<>(mRemovedEntries));
                 mClearAllFlag = false;
+                mValues.clear();
+                mRemovedEntries.clear();
+                return edit;
+            }
 
-                ContentValues values = new ContentValues();
-                for (Pair<String, Object> v : mValues) {
-                    Uri uri = resolveUri(v.first, mPreferencesFileName);
-                    values.put(FIELD_KEY, v.first);
-                    if (v.second instanceof Boolean) {
-                        values.put(FIELD_VALUE, (Boolean) v.second);
-                    } else if (v.second instanceof Long) {
-                        values.put(FIELD_VALUE, (Long) v.second);
-                    } else if (v.second instanceof Integer) {
-                        values.put(FIELD_VALUE, (Integer) v.second);
-                    } else if (v.second instanceof Float) {
-                        values.put(FIELD_VALUE, (Float) v.second);
-                    } else if (v.second instanceof String) {
-                        values.put(FIELD_VALUE, (String) v.second);
-                    } else if (v.second instanceof Set) {
-                        values.put(FIELD_VALUE, marshallSet((Set<String>) v.second));
+            // Turns an edit into the extras of a put call
+            private static Bundle toExtras(Edit edit) {
+                Bundle extras = new Bundle();
+                extras.putBoolean(EXTRA_CLEAR, edit.clear);
+
+                Bundle values = new Bundle();
+                List<String> removed = new ArrayList<>(edit.removed);
+                for (Pair<String, Object> v : edit.values) {
+                    if (v.second == null) {
+                        // Android treats putting null as a removal
+                        removed.add(v.first);
+                    } else if (PreferenceCodec.typeOf(v.second) != PreferenceCodec.TYPE_UNKNOWN) {
+                        values.putByteArray(v.first, PreferenceCodec.encode(v.second));
                     } else {
                         throw new IllegalArgumentException("Unsupported type for key " + v.first);
                     }
-
-                    mContext.getContentResolver().update(uri, values, null, null);
                 }
-
-                for (String key : mRemovedEntries) {
-                    Uri uri = resolveUri(key, mPreferencesFileName);
-                    mContext.getContentResolver().delete(uri, null, null);
-                }
-                return true;
-            }
-
-            @Override
-            public void apply() {
-                commit();
+                extras.putBundle(EXTRA_VALUES, values);
+                extras.putStringArray(EXTRA_REMOVED, removed.toArray(new String[removed.size()]));
+                return extras;
             }
         }
 
-        private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+        // Delivered on the main thread like SharedPreferences does, the first
+        // instance may be built on a worker thread that has no looper
+        private final ContentObserver mObserver = new ContentObserver(
+                new Handler(Looper.getMainLooper())) {
             @Override
             public boolean deliverSelfNotifications() {
                 return false;
@@ -454,9 +809,28 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
             public void onChange(boolean selfChange, Uri uri) {
                 String name = decodePath(uri.getPathSegments().get(1));
                 if (name.equals(mPreferencesFileName)) {
-                    String key = decodePath(uri.getLastPathSegment());
-                    for (OnSharedPreferenceChangeListener cb : mListeners) {
-                        cb.onSharedPreferenceChanged(MultiProcessSharedPreferences.this, key);
+                    List<String> keys;
+                    if (sURLMatcher.match(uri) == PREFERENCES_DATA_ID) {
+                        keys = new ArrayList<>();
+                        keys.add(decodePath(uri.getLastPathSegment()));
+                    } else {
+                        keys = uri.getQueryParameters(QUERY_KEY);
+                    }
+                    String lastVersion = uri.getQueryParameter(QUERY_VERSION);
+                    String firstVersion = uri.getQueryParameter(QUERY_FIRST_VERSION);
+                    if (!isOwnChange(firstVersion != null ? firstVersion : lastVersion, lastVersion)) {
+                        invalidate(keys);
+                    }
+                    if (!keys.isEmpty()) {
+                        Set<String> changed = Collections.unmodifiableSet(new HashSet<>(keys));
+                        for (OnSharedPreferencesBatchChangeListener cb : mBatchListeners) {
+                            cb.onSharedPreferencesChanged(MultiProcessSharedPreferences.this, changed);
+                        }
+                    }
+                    for (String key : keys) {
+                        for (OnSharedPreferenceChangeListener cb : mListeners) {
+                            cb.onSharedPreferenceChanged(MultiProcessSharedPreferences.this, key);
+                        }
                     }
                 }
             }
@@ -465,11 +839,30 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
 
         private final Context mContext;
         private final List<OnSharedPreferenceChangeListener> mListeners = new ArrayList<>();
+        private final List<OnSharedPreferencesBatchChangeListener> mBatchListeners = new ArrayList<>();
+
+        // Snapshot of the whole file, null until the first read or after a
+        // change notification that didn't say which keys changed. It is never
+        // modified once published, edits replace it with a copy so readers
+        // don't need the lock.
+        private final Object mLock = new Object();
+        private Map<String, Object> mCache;
+        // Keys of the snapshot another process changed since it was taken
+        private final Set<String> mStaleKeys = new HashSet<>();
+        // Bumped on every local edit and every invalidation, a snapshot that
+        // was queried across a bump may be missing it and is not kept
+        private long mGeneration = 0;
+        // Local edits the provider may not have stored yet
+        private final List<Edit> mPendingEdits = new ArrayList<>();
+        // Provider versions produced by our own puts. Their notifications
+        // change nothing the snapshot doesn't already have.
+        private final Set<Long> mOwnVersions = new LinkedHashSet<>();
 
         private MultiProcessSharedPreferences(Context context, String name) {
             mContext = context;
             mPreferencesFileName = name;
-            Uri uri = CONTENT_URI.buildUpon().appendPath(PREFERENCES_ENTITY).build();
+            // Only this file, changes to other files don't wake us up
+            Uri uri = resolveUri(null, name);
             context.getContentResolver().registerContentObserver(uri, true, mObserver);
             mObserving = true;
         }
@@ -487,221 +880,216 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
             return mPreferencesFileName;
         }
 
-        @Override
-        public Map<String, ?> getAll() {
-            Map<String, Object> values = new HashMap<>();
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(null, mPreferencesFileName), PROJECTION, null, null, null);
-            if (c != null) {
-                try {
-                    while (c.moveToNext()) {
-                        String key = c.getString(c.getColumnIndexOrThrow(FIELD_KEY));
-                        int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                        Object value = null;
-                        if (type == Cursor.FIELD_TYPE_INTEGER) {
-                            value = c.getLong(c.getColumnIndexOrThrow(FIELD_VALUE));
-                        } else if (type == Cursor.FIELD_TYPE_FLOAT) {
-                            value = c.getFloat(c.getColumnIndexOrThrow(FIELD_VALUE));
-                        } else if (type == Cursor.FIELD_TYPE_STRING) {
-                            String v = c.getString(c.getColumnIndexOrThrow(FIELD_VALUE));
-                            if (v.equals("true") || v.equals("false")) {
-                                value = Boolean.parseBoolean(v);
-                            } else {
-                                try {
-                                    value = unmarshallSet(v);
-                                } catch (JSONException e) {
-                                    value = v;
-                                }
-                            }
-                        }
-
-                        values.put(key, value);
+        // Returns the cached snapshot, querying the provider if there is none
+        // and refreshing just the keys that changed if there is one
+        private Map<String, Object> snapshot() {
+            Map<String, Object> values = null;
+            for (int attempt = 0; attempt < 3; attempt++) {
+                long generation;
+                Map<String, Object> cache;
+                Set<String> stale;
+                synchronized (mLock) {
+                    if (mCache != null && mStaleKeys.isEmpty()) {
+                        return mCache;
                     }
-                } finally {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
+                    generation = mGeneration;
+                    cache = mCache;
+                    stale = new HashSet<>(mStaleKeys);
+                }
+                values = cache != null && cache.keySet().containsAll(stale)
+                        ? refresh(cache, stale) : query();
+                synchronized (mLock) {
+                    for (Edit edit : mPendingEdits) {
+                        edit.applyTo(values);
+                    }
+                    if (generation == mGeneration) {
+                        mCache = values;
+                        mStaleKeys.clear();
+                        return values;
                     }
                 }
             }
+            // The file keeps changing under us, serve this read uncached
             return values;
         }
 
-        @Nullable
-        @Override
-        public String getString(String key, String defValue) {
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(key, mPreferencesFileName), PROJECTION, null, null, null);
-            try {
-                if (c == null || !c.moveToFirst()) {
-                    return defValue;
+        private void beginEdit(Edit edit) {
+            synchronized (mLock) {
+                mGeneration++;
+                mPendingEdits.add(edit);
+                if (mCache != null) {
+                    Map<String, Object> values = new HashMap<>(mCache);
+                    edit.applyTo(values);
+                    mCache = values;
                 }
-                int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                if (type != Cursor.FIELD_TYPE_STRING) {
-                    return defValue;
+            }
+        }
+
+        private void endEdit(Edit edit) {
+            synchronized (mLock) {
+                mPendingEdits.remove(edit);
+            }
+        }
+
+        private void invalidate(List<String> keys) {
+            synchronized (mLock) {
+                mGeneration++;
+                if (keys.isEmpty()) {
+                    mCache = null;
+                    mStaleKeys.clear();
+                } else if (mCache != null) {
+                    mStaleKeys.addAll(keys);
                 }
+            }
+        }
 
-                return c.getString(c.getColumnIndexOrThrow(FIELD_VALUE));
-            } finally {
-                if (c != null) {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
+        private boolean put(Bundle extras) {
+            Bundle result = call(METHOD_PUT, extras);
+            if (result == null) {
+                return false;
+            }
+            synchronized (mLock) {
+                mOwnVersions.add(result.getLong(EXTRA_VERSION));
+                // An echo that arrived before the reply is never removed, so
+                // only remember the most recent ones
+                Iterator<Long> it = mOwnVersions.iterator();
+                while (mOwnVersions.size() > 16) {
+                    it.next();
+                    it.remove();
                 }
             }
+            return true;
         }
 
-        @Nullable
-        @Override
-        public Set<String> getStringSet(String key, Set<String> defValues) {
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(key, mPreferencesFileName), PROJECTION, null, null, null);
-            try {
-                if (c == null || !c.moveToFirst()) {
-                    return defValues;
+        // Whether every write a notification covers came from our own puts.
+        // A coalesced notification may mix our writes with someone else's.
+        private boolean isOwnChange(String firstVersion, String lastVersion) {
+            if (firstVersion == null || lastVersion == null) {
+                return false;
+            }
+            long first = Long.parseLong(firstVersion);
+            long last = Long.parseLong(lastVersion);
+            synchronized (mLock) {
+                if (last < first || last - first >= mOwnVersions.size()) {
+                    return false;
+                }
+                for (long version = first; version <= last; version++) {
+                    if (!mOwnVersions.contains(version)) {
+                        return false;
+                    }
                 }
-                int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                if (type != Cursor.FIELD_TYPE_STRING) {
-                    return defValues;
+                for (long version = first; version <= last; version++) {
+                    mOwnVersions.remove(version);
                 }
+                return true;
+            }
+        }
 
-                try {
-                    String v = c.getString(c.getColumnIndexOrThrow(FIELD_VALUE));
-                    JSONArray array = new JSONArray(v);
-                    int size = array.length();
-                    Set<String> set = new HashSet<>(size);
-                    for (int i = 0; i < size; i++) {
-                        set.add(array.getString(i));
-                    }
-                    return set;
+        // Re-reads the stale keys of a snapshot in one call, passing the
+        // type each one had so the provider can use its typed getters
+        private Map<String, Object> refresh(Map<String, Object> cache, Set<String> stale) {
+            String[] keys = stale.toArray(new String[stale.size()]);
+            int[] types = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                types[i] = PreferenceCodec.typeOf(cache.get(keys[i]));
+            }
+            Bundle extras = new Bundle();
+            extras.putStringArray(EXTRA_KEYS, keys);
+            extras.putIntArray(EXTRA_TYPES, types);
 
-                } catch (JSONException e) {
-                    // Ignore
-                }
+            Map<String, Object> values = new HashMap<>(cache);
+            for (String key : keys) {
+                values.remove(key);
+            }
+            read(call(METHOD_GET, extras), values);
+            return values;
+        }
 
-                return defValues;
-            } finally {
-                if (c != null) {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
+        private Map<String, Object> query() {
+            Map<String, Object> values = new HashMap<>();
+            read(call(METHOD_GET_ALL, null), values);
+            return values;
+        }
+
+        private static void read(Bundle result, Map<String, Object> values) {
+            Bundle encoded = result != null ? result.getBundle(EXTRA_VALUES) : null;
+            if (encoded == null) {
+                return;
+            }
+            for (String key : encoded.keySet()) {
+                Object value = PreferenceCodec.decode(encoded.getByteArray(key));
+                if (value != null) {
+                    values.put(key, value);
                 }
             }
         }
 
+        private Bundle call(String method, Bundle extras) {
+            return mContext.getContentResolver().call(CONTENT_URI, method, mPreferencesFileName, extras);
+        }
+
+        // Returns the provider's version stamp of this file. It changes with
+        // every write, so it is a cheap way to tell if values read earlier
+        // are still current.
+        public long getVersion() {
+            Bundle result = call(METHOD_VERSION, null);
+            return result != null ? result.getLong(EXTRA_VERSION) : 0;
+        }
+
         @Override
-        public int getInt(String key, int defValue) {
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(key, mPreferencesFileName), PROJECTION, null, null, null);
-            try {
-                if (c == null || !c.moveToFirst()) {
-                    return defValue;
-                }
-                int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                if (type != Cursor.FIELD_TYPE_INTEGER) {
-                    return defValue;
-                }
+        public Map<String, ?> getAll() {
+            return new HashMap<>(snapshot());
+        }
 
-                return c.getInt(c.getColumnIndexOrThrow(FIELD_VALUE));
-            } finally {
-                if (c != null) {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
-                }
-            }
+        @Nullable
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = snapshot().get(key);
+            return value instanceof String ? (String) value : defValue;
         }
 
+        @Nullable
         @Override
-        public long getLong(String key, long defValue) {
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(key, mPreferencesFileName), PROJECTION, null, null, null);
-            try {
-                if (c == null || !c.moveToFirst()) {
-                    return defValue;
-                }
-                int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                if (type != Cursor.FIELD_TYPE_INTEGER) {
-                    return defValue;
-                }
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            Object value = snapshot().get(key);
+            return value instanceof Set ? new HashSet<>((Set<String>) value) : defValues;
+        }
 
-                return c.getLong(c.getColumnIndexOrThrow(FIELD_VALUE));
-            } finally {
-                if (c != null) {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
-                }
-            }
+        @Override
+        public int getInt(String key, int defValue) {
+            Object value = snapshot().get(key);
+            return value instanceof Integer || value instanceof Long
+                    ? ((Number) value).intValue() : defValue;
         }
 
         @Override
-        public float getFloat(String key, float defValue) {
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(key, mPreferencesFileName), PROJECTION, null, null, null);
-            try {
-                if (c == null || !c.moveToFirst()) {
-                    return defValue;
-                }
-                int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                if (type != Cursor.FIELD_TYPE_FLOAT) {
-                    return defValue;
-                }
+        public long getLong(String key, long defValue) {
+            Object value = snapshot().get(key);
+            return value instanceof Integer || value instanceof Long
+                    ? ((Number) value).longValue() : defValue;
+        }
 
-                return c.getFloat(c.getColumnIndexOrThrow(FIELD_VALUE));
-            } finally {
-                if (c != null) {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
-                }
-            }
+        @Override
+        public float getFloat(String key, float defValue) {
+            Object value = snapshot().get(key);
+            return value instanceof Float ? (Float) value : defValue;
         }
 
         @Override
         public boolean getBoolean(String key, boolean defValue) {
-            Cursor c = mContext.getContentResolver().query(
-                    resolveUri(key, mPreferencesFileName), PROJECTION, null, null, null);
-            try {
-                if (c == null || !c.moveToFirst()) {
-                    return defValue;
-                }
-                int type = c.getType(c.getColumnIndexOrThrow(FIELD_VALUE));
-                if (type != Cursor.FIELD_TYPE_STRING) {
-                    return defValue;
-                }
-
-                return Boolean.parseBoolean(c.getString(c.getColumnIndexOrThrow(FIELD_VALUE)));
-            } finally {
-                if (c != null) {
-                    try {
-                        c.close();
-                    } catch (Exception e) {
-                        // Ignore
-                    }
-                }
-            }
+            Object value = snapshot().get(key);
+            return value instanceof Boolean ? (Boolean) value : defValue;
         }
 
         @Override
         public boolean contains(String key) {
-            return getAll().containsKey(key);
+            return snapshot().containsKey(key);
         }
 
         @Override
         public Editor edit() {
-            return new MultiProcessEditor(mContext, mPreferencesFileName);
+            return new MultiProcessEditor(this);
         }
 
         @Override
@@ -713,6 +1101,24 @@ public class MultiProcessSharedPreferencesProvider extends ContentProvider {
         public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener cb) {
             mListeners.remove(cb);
         }
+
+        public void registerOnSharedPreferencesBatchChangeListener(
+                OnSharedPreferencesBatchChangeListener cb) {
+            mBatchListeners.add(cb);
+        }
+
+        public void unregisterOnSharedPreferencesBatchChangeListener(
+                OnSharedPreferencesBatchChangeListener cb) {
+            mBatchListeners.remove(cb);
+        }
+    }
+
+    /**
+     * Called once per change notification with every key it covers, instead
+     * of once per key like {@link SharedPreferences.OnSharedPreferenceChangeListener}.
+     */
+    public interface OnSharedPreferencesBatchChangeListener {
+        void onSharedPreferencesChanged(SharedPreferences sharedPreferences, Set<String> keys);
     }
 
     private static String encodePath(String path) {
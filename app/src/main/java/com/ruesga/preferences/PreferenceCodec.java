@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016 Jorge Ruesga
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ruesga.preferences;
+
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Wire format of a preference value: a one byte type tag followed by the
+ * payload. Numbers are big endian, strings are a length followed by their
+ * UTF-8 bytes, and a string set is an element count followed by its strings.
+ * Decoding checks every length against the buffer instead of relying on
+ * exceptions, and returns null for anything malformed.
+ */
+final class PreferenceCodec {
+
+    static final int TYPE_UNKNOWN = 0;
+    static final int TYPE_STRING = 1;
+    static final int TYPE_SET = 2;
+    static final int TYPE_INT = 3;
+    static final int TYPE_LONG = 4;
+    static final int TYPE_FLOAT = 5;
+    static final int TYPE_BOOLEAN = 6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PreferenceCodec() {
+    }
+
+    static int typeOf(Object value) {
+        if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Set<?>) {
+            return TYPE_SET;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    @SuppressWarnings("unchecked")
+    static byte[] encode(Object value) {
+        switch (typeOf(value)) {
+            case TYPE_STRING: {
+                byte[] data = ((String) value).getBytes(UTF_8);
+                Writer writer = new Writer(TYPE_STRING, 4 + data.length);
+                writer.putBytes(data);
+                return writer.buffer;
+            }
+            case TYPE_SET: {
+                Set<String> set = (Set<String>) value;
+                byte[][] items = new byte[set.size()][];
+                int size = 4;
+                int i = 0;
+                for (String item : set) {
+                    items[i] = item != null ? item.getBytes(UTF_8) : null;
+                    size += 4 + (items[i] != null ? items[i].length : 0);
+                    i++;
+                }
+                Writer writer = new Writer(TYPE_SET, size);
+                writer.putInt(items.length);
+                for (byte[] item : items) {
+                    writer.putBytes(item);
+                }
+                return writer.buffer;
+            }
+            case TYPE_INT: {
+                Writer writer = new Writer(TYPE_INT, 4);
+                writer.putInt((Integer) value);
+                return writer.buffer;
+            }
+            case TYPE_LONG: {
+                Writer writer = new Writer(TYPE_LONG, 8);
+                writer.putLong((Long) value);
+                return writer.buffer;
+            }
+            case TYPE_FLOAT: {
+                Writer writer = new Writer(TYPE_FLOAT, 4);
+                writer.putInt(Float.floatToIntBits((Float) value));
+                return writer.buffer;
+            }
+            case TYPE_BOOLEAN: {
+                Writer writer = new Writer(TYPE_BOOLEAN, 1);
+                writer.buffer[writer.position++] = (byte) ((Boolean) value ? 1 : 0);
+                return writer.buffer;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported preference type: " + value);
+        }
+    }
+
+    static Object decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        Reader reader = new Reader(data);
+        Object value;
+        switch (data[0]) {
+            case TYPE_STRING:
+                value = reader.getString();
+                break;
+            case TYPE_SET: {
+                int count = reader.getInt();
+                // Every element takes at least its length
+                if (count < 0 || count > reader.remaining() / 4) {
+                    return null;
+                }
+                Set<String> set = new HashSet<>(count);
+                for (int i = 0; i < count && reader.valid; i++) {
+                    set.add(reader.getString());
+                }
+                value = set;
+                break;
+            }
+            case TYPE_INT:
+                value = reader.getInt();
+                break;
+            case TYPE_LONG:
+                value = reader.getLong();
+                break;
+            case TYPE_FLOAT:
+                value = Float.intBitsToFloat(reader.getInt());
+                break;
+            case TYPE_BOOLEAN:
+                value = reader.require(1) && data[reader.position++] != 0;
+                break;
+            default:
+                return null;
+        }
+        return reader.valid && reader.remaining() == 0 ? value : null;
+    }
+
+    private static final class Writer {
+        final byte[] buffer;
+        int position;
+
+        Writer(int type, int size) {
+            buffer = new byte[1 + size];
+            buffer[position++] = (byte) type;
+        }
+
+        void putInt(int v) {
+            buffer[position++] = (byte) (v >>> 24);
+            buffer[position++] = (byte) (v >>> 16);
+            buffer[position++] = (byte) (v >>> 8);
+            buffer[position++] = (byte) v;
+        }
+
+        void putLong(long v) {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+
+        // A null string is written with a length of -1
+        void putBytes(byte[] data) {
+            if (data == null) {
+                putInt(-1);
+                return;
+            }
+            putInt(data.length);
+            System.arraycopy(data, 0, buffer, position, data.length);
+            position += data.length;
+        }
+    }
+
+    private static final class Reader {
+        final byte[] buffer;
+        int position = 1;
+        boolean valid = true;
+
+        Reader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.length - position;
+        }
+
+        boolean require(int bytes) {
+            if (!valid || bytes > remaining()) {
+                valid = false;
+            }
+            return valid;
+        }
+
+        int getInt() {
+            if (!require(4)) {
+                return 0;
+            }
+            int v = (buffer[position] & 0xff) << 24
+                    | (buffer[position + 1] & 0xff) << 16
+                    | (buffer[position + 2] & 0xff) << 8
+                    | (buffer[position + 3] & 0xff);
+            position += 4;
+            return v;
+        }
+
+        long getLong() {
+            long high = getInt() & 0xffffffffL;
+            long low = getInt() & 0xffffffffL;
+            return high << 32 | low;
+        }
+
+        String getString() {
+            int length = getInt();
+            if (!valid || length == -1) {
+                return null;
+            }
+            if (length < 0 || !require(length)) {
+                valid = false;
+                return null;
+            }
+            String v = new String(buffer, position, length, UTF_8);
+            position += length;
+            return v;
+        }
+    }
+}
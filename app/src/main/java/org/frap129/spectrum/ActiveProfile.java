@@ -0,0 +1,25 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+
+import com.ruesga.preferences.MultiProcessSharedPreferencesProvider;
+import com.ruesga.preferences.MultiProcessSharedPreferencesProvider.MultiProcessSharedPreferences;
+
+// The active profile id, persisted in the profile preferences that every
+// process reads through the preferences provider
+class ActiveProfile {
+
+    static MultiProcessSharedPreferences preferences(Context context) {
+        return MultiProcessSharedPreferencesProvider.getSharedPreferences(
+                context.getApplicationContext(), Profiles.PREFERENCES);
+    }
+
+    static int get(Context context) {
+        // getAll() because older values are strings and getInt() would throw
+        return Profiles.decode(preferences(context).getAll().get(Profiles.KEY));
+    }
+
+    static void set(Context context, int id) {
+        preferences(context).edit().putInt(Profiles.KEY, id).apply();
+    }
+}
@@ -0,0 +1,98 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+// Everything the boot receiver needs, kept in the profile preferences next
+// to the active profile so it is read with a single getAll(). Older versions
+// kept the loader settings in files of their own, those are moved over once.
+class BootConfig {
+
+    static final String KEY_LOAD_ON_BOOT = "loadOnBoot";
+    static final String KEY_PROFILE_PATH = "profilePath";
+
+    // Latency of the last boot apply, counted from boot, and whether it worked
+    static final String KEY_LAST_APPLY_MS = "lastBootApplyMs";
+    static final String KEY_LAST_APPLY_OK = "lastBootApplyOk";
+
+    // Set once the legacy files have been moved over
+    private static final String KEY_MIGRATED = "bootConfig";
+
+    final boolean loadOnBoot;
+    final String profilePath;
+    final int profile;
+
+    BootConfig(boolean loadOnBoot, String profilePath, int profile) {
+        this.loadOnBoot = loadOnBoot;
+        this.profilePath = profilePath;
+        this.profile = profile;
+    }
+
+    // Method that tells whether the custom profile should be applied at boot,
+    // picking a built-in profile after loading it turns it off again
+    boolean shouldApply() {
+        return loadOnBoot && profilePath != null && profile == Profiles.CUSTOM;
+    }
+
+    // Method that reads the boot config, never call it on the main thread
+    static BootConfig read(Context context) {
+        return read(migrate(context));
+    }
+
+    static BootConfig read(SharedPreferences prefs) {
+        Map<String, ?> values = prefs.getAll();
+        Object loadOnBoot = values.get(KEY_LOAD_ON_BOOT);
+        Object profilePath = values.get(KEY_PROFILE_PATH);
+        // Boot apply used to default to on, only the loader's switch showed it off
+        return new BootConfig(
+                loadOnBoot instanceof Boolean ? (Boolean) loadOnBoot : true,
+                profilePath instanceof String ? (String) profilePath : null,
+                Profiles.decode(values.get(Profiles.KEY)));
+    }
+
+    // Method that moves the loader settings out of their old files, returns
+    // the preferences they now live in. The move commits, so the first call
+    // must not come from the main thread.
+    static SharedPreferences migrate(Context context) {
+        SharedPreferences prefs = ActiveProfile.preferences(context);
+        if (prefs.contains(KEY_MIGRATED)) {
+            return prefs;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        SharedPreferences boot = context.getSharedPreferences("loadOnBoot", Context.MODE_PRIVATE);
+        if (boot.contains(KEY_LOAD_ON_BOOT)) {
+            editor.putBoolean(KEY_LOAD_ON_BOOT, boot.getBoolean(KEY_LOAD_ON_BOOT, true));
+        }
+        SharedPreferences path = context.getSharedPreferences("profilePath", Context.MODE_PRIVATE);
+        if (path.contains(KEY_PROFILE_PATH)) {
+            editor.putString(KEY_PROFILE_PATH, path.getString(KEY_PROFILE_PATH, null));
+        }
+        editor.putBoolean(KEY_MIGRATED, true).commit();
+        return prefs;
+    }
+
+    static void setLoadOnBoot(Context context, boolean loadOnBoot) {
+        migrate(context).edit().putBoolean(KEY_LOAD_ON_BOOT, loadOnBoot).apply();
+    }
+
+    // Method that remembers a loaded custom profile and marks it active
+    static void setCustomProfile(Context context, String path) {
+        setCustomProfile(migrate(context), path);
+    }
+
+    static void setCustomProfile(SharedPreferences prefs, String path) {
+        prefs.edit()
+                .putString(KEY_PROFILE_PATH, path)
+                .putInt(Profiles.KEY, Profiles.CUSTOM)
+                .apply();
+    }
+
+    static void recordApply(Context context, long latencyMs, boolean success) {
+        ActiveProfile.preferences(context).edit()
+                .putLong(KEY_LAST_APPLY_MS, latencyMs)
+                .putBoolean(KEY_LAST_APPLY_OK, success)
+                .apply();
+    }
+}
@@ -3,25 +3,94 @@ package org.frap129.spectrum;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.SystemClock;
 
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Applies the custom profile at boot. The receiver stays alive through
+// goAsync() until the profile is applied or the deadline passes, so the
+// process isn't killed halfway through the writes.
 public class BootReceiver extends BroadcastReceiver{
+
+    // Well under the time the system gives a receiver before it gets killed
+    static final long DEADLINE_MS = 8000;
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "spectrum-boot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()))
+            return;
 
-        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            SharedPreferences boot = context.getSharedPreferences("loadOnBoot", Context.MODE_PRIVATE);
-            if (boot.getBoolean("loadOnBoot", true)) {
-                SharedPreferences path = context.getSharedPreferences("profilePath", Context.MODE_PRIVATE);
-                SharedPreferences profile = context.getSharedPreferences("profile", Context.MODE_PRIVATE);
-                String profilePath = path.getString("profilePath", null);
-                String curProfile = profile.getString("profile", "0");
-                if ((profilePath != null) && !(curProfile.contains("custom")))
-                    ProfileLoaderActivity.setEXKMProfile(profilePath);
+        final long start = SystemClock.elapsedRealtime();
+        final PendingResult result = goAsync();
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    applyOnBoot(appContext, start);
+                } finally {
+                    result.finish();
+                }
             }
-        }
+        });
     }
 
+    // Method that applies the custom profile if the boot config asks for it,
+    // waiting at most DEADLINE_MS from start, when the broadcast came in
+    private static void applyOnBoot(final Context context, long start) {
+        // Get su going while the config is read, the first command pays for it
+        RootSession.get().submit("true");
 
+        final BootConfig config = BootConfig.read(context);
+        if (!config.shouldApply())
+            return;
 
+        final File plan = new File(context.getFilesDir(), "profile.plan");
+        Future<Boolean> apply = sExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ProfileLoaderActivity.applyProfile(plan, config.profilePath);
+            }
+        });
+
+        boolean success = false;
+        try {
+            success = apply.get(DEADLINE_MS - (SystemClock.elapsedRealtime() - start),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } catch (TimeoutException e) {
+            // Keeps running, but the process may not live to finish it
+            e.printStackTrace();
+        }
+
+        // Boot to applied, mostly the system booting, is kept with the boot
+        // config. The histogram only times our own path, from the broadcast.
+        long now = SystemClock.elapsedRealtime();
+        BootConfig.recordApply(context, now, success);
+        Metrics metrics = Metrics.get();
+        metrics.increment(Metrics.BOOT_APPLIES);
+        metrics.record(Metrics.BOOT_LATENCY, (now - start) * 1000);
+        metrics.writeTo(new File(context.getFilesDir(), Metrics.FILE_NAME));
+    }
 }
@@ -0,0 +1,243 @@
+package org.frap129.spectrum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary write plan for a custom profile. Node paths and values are stored
+// once each in lookup tables and the writes reference them by index, in the
+// order the source lists them. The plan remembers the hash of the text it was
+// compiled from, so an unchanged profile is never tokenized again.
+class CompiledProfile {
+
+    private static final int MAGIC = 0x53505850; // "SPXP"
+    private static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mSourceHash;
+    private final String[] mNodes;
+    private final String[] mValues;
+    // (node index, value index) pairs in source order
+    private final int[] mOps;
+
+    private CompiledProfile(byte[] sourceHash, String[] nodes, String[] values, int[] ops) {
+        mSourceHash = sourceHash;
+        mNodes = nodes;
+        mValues = values;
+        mOps = ops;
+    }
+
+    // Method that returns the saved plan for source, compiling and saving a
+    // new one if there is none or the source changed since
+    static CompiledProfile loadOrCompile(File plan, File source) throws IOException {
+        byte[] hash = hash(source);
+        CompiledProfile profile = load(plan, hash);
+        if (profile == null) {
+            profile = compile(source);
+            profile.save(plan);
+        }
+        return profile;
+    }
+
+    // Method that tokenizes a text profile into a plan
+    static CompiledProfile compile(File source) throws IOException {
+        final Map<String, Integer> nodes = new HashMap<>();
+        final Map<String, Integer> values = new HashMap<>();
+        final List<int[]> ops = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        InputStream in = new DigestInputStream(new FileInputStream(source), digest);
+        try {
+            ProfileParser.parse(new InputStreamReader(in, "UTF-8"), new ProfileParser.Sink() {
+                @Override
+                public void onWrite(String path, String value) {
+                    ops.add(new int[]{index(nodes, path), index(values, value)});
+                }
+            });
+        } finally {
+            in.close();
+        }
+
+        int[] packed = new int[ops.size() * 2];
+        for (int i = 0; i < ops.size(); i++) {
+            packed[i * 2] = ops.get(i)[0];
+            packed[i * 2 + 1] = ops.get(i)[1];
+        }
+        return new CompiledProfile(digest.digest(), table(nodes), table(values), packed);
+    }
+
+    // Method that reads a saved plan, returns null if it's missing, corrupt
+    // or was compiled from a different source
+    static CompiledProfile load(File plan, byte[] sourceHash) {
+        if (!plan.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(plan)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                if (!Arrays.equals(hash, sourceHash)) {
+                    return null;
+                }
+                String[] nodes = readTable(in, plan.length());
+                String[] values = readTable(in, plan.length());
+                if (nodes == null || values == null) {
+                    return null;
+                }
+                int count = in.readInt();
+                if (count < 0 || count > plan.length() / 8) {
+                    return null;
+                }
+                int[] ops = new int[count * 2];
+                for (int i = 0; i < ops.length; i += 2) {
+                    ops[i] = in.readInt();
+                    ops[i + 1] = in.readInt();
+                    if (ops[i] < 0 || ops[i] >= nodes.length
+                            || ops[i + 1] < 0 || ops[i + 1] >= values.length) {
+                        return null;
+                    }
+                }
+                return new CompiledProfile(hash, nodes, values, ops);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Method that writes the plan aside and renames it into place. The loader
+    // and the boot receiver may save the same plan at once, so each save
+    // gets a temp file of its own and the last rename wins whole.
+    void save(File plan) throws IOException {
+        File temp = File.createTempFile(plan.getName() + ".", ".tmp", plan.getParentFile());
+        boolean saved = false;
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeByte(mSourceHash.length);
+                out.write(mSourceHash);
+                writeTable(out, mNodes);
+                writeTable(out, mValues);
+                out.writeInt(mOps.length / 2);
+                for (int op : mOps) {
+                    out.writeInt(op);
+                }
+            } finally {
+                out.close();
+            }
+            saved = temp.renameTo(plan);
+        } finally {
+            if (!saved) {
+                temp.delete();
+            }
+        }
+        if (!saved) {
+            throw new IOException("Could not save " + plan);
+        }
+    }
+
+    // Method that hands every write of the plan to sink in source order
+    void execute(ProfileParser.Sink sink) throws IOException {
+        for (int i = 0; i < mOps.length; i += 2) {
+            sink.onWrite(mNodes[mOps[i]], mValues[mOps[i + 1]]);
+        }
+    }
+
+    int getWriteCount() {
+        return mOps.length / 2;
+    }
+
+    static byte[] hash(File source) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(source);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    // Strings are a length and their UTF-8 bytes, writeUTF() would stop at 64k
+    private static void writeTable(DataOutputStream out, String[] table) throws IOException {
+        out.writeInt(table.length);
+        for (String entry : table) {
+            byte[] data = entry.getBytes(UTF_8);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    // Method that reads a table written by writeTable(), null if its lengths
+    // can't fit in a file of size bytes
+    private static String[] readTable(DataInputStream in, long size) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > size / 4) {
+            return null;
+        }
+        String[] table = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > size) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            table[i] = new String(data, UTF_8);
+        }
+        return table;
+    }
+
+    private static int index(Map<String, Integer> table, String key) {
+        Integer index = table.get(key);
+        if (index == null) {
+            index = table.size();
+            table.put(key, index);
+        }
+        return index;
+    }
+
+    private static String[] table(Map<String, Integer> map) {
+        String[] table = new String[map.size()];
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            table[entry.getValue()] = entry.getKey();
+        }
+        return table;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
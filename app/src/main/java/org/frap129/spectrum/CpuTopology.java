@@ -0,0 +1,176 @@
+package org.frap129.spectrum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+// The cpufreq policies of the device, one per cluster, so governor changes
+// reach the big cores too and not just cpu0's cluster. It is discovered with
+// the capabilities and cached with them, so it's read once per boot, unless
+// a cluster was offline and couldn't be seen.
+class CpuTopology {
+
+    private static final String cpuDir = "/sys/devices/system/cpu";
+
+    private static final String cpufreqDir = cpuDir + "/cpufreq";
+
+    private static final String possiblePath = cpuDir + "/possible";
+
+    // What the app always touched, for kernels that hide the topology
+    static final CpuTopology DEFAULT = new CpuTopology(new String[]{cpuDir + "/cpu0/cpufreq"});
+
+    // Directories holding the scaling_* nodes of each policy
+    final String[] policies;
+
+    // False if some possible cpu is in none of the policies, because its
+    // whole cluster was offline. Such a topology is never cached.
+    final boolean complete;
+
+    CpuTopology(String[] policies) {
+        this(policies, true);
+    }
+
+    CpuTopology(String[] policies, boolean complete) {
+        this.policies = policies;
+        this.complete = complete;
+    }
+
+    // Method that returns this topology, or a fresh one if clusters were
+    // missing when it was discovered, since they may be online by now
+    CpuTopology current(NodeIO nodes) {
+        return complete ? this : discover(nodes);
+    }
+
+    // Method that finds one cpufreq directory per cluster. Kernels since 4.3
+    // list them as cpufreq/policyN, which stay around while their cpus are
+    // offline. Older ones only have cpuN/cpufreq, where related_cpus tells
+    // which cpus share a cluster and which goes away with an offline cluster.
+    static CpuTopology discover(NodeIO nodes) {
+        String[] policies = list(nodes, cpufreqDir, "policy");
+        if (policies.length > 0) {
+            for (int i = 0; i < policies.length; i++) {
+                policies[i] = cpufreqDir + "/" + policies[i];
+            }
+            return new CpuTopology(policies);
+        }
+
+        List<String> dirs = new ArrayList<>();
+        List<Integer> numbers = new ArrayList<>();
+        List<String> related = new ArrayList<>();
+        for (String cpu : list(nodes, cpuDir, "cpu")) {
+            String dir = cpuDir + "/" + cpu + "/cpufreq";
+            if (nodes.resolve(dir).isDirectory()) {
+                dirs.add(dir);
+                numbers.add(number(cpu.substring(3), 0));
+                related.add(dir + "/related_cpus");
+            }
+        }
+        // All the related_cpus and the possible cpus in one go, in case they need root
+        related.add(possiblePath);
+        String[] values = nodes.readAll(related.toArray(new String[0]));
+        List<String> clusters = new ArrayList<>();
+        BitSet covered = new BitSet();
+        for (int i = 0; i < dirs.size(); i++) {
+            int cpu = numbers.get(i);
+            BitSet cluster = cpus(values[i]);
+            if (firstCpu(cluster, cpu) == cpu) {
+                clusters.add(dirs.get(i));
+            }
+            covered.set(cpu);
+            covered.or(cluster);
+        }
+        if (clusters.isEmpty()) {
+            return DEFAULT;
+        }
+        BitSet missing = cpus(values[dirs.size()]);
+        missing.andNot(covered);
+        return new CpuTopology(clusters.toArray(new String[0]), missing.isEmpty());
+    }
+
+    // Method that returns the path of a node in every policy, e.g. scaling_governor
+    String[] paths(String node) {
+        String[] paths = new String[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            paths[i] = policies[i] + "/" + node;
+        }
+        return paths;
+    }
+
+    // Method that turns the topology into a comma separated list for the cache
+    String encode() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < policies.length; i++) {
+            if (i > 0) builder.append(',');
+            builder.append(policies[i]);
+        }
+        return builder.toString();
+    }
+
+    static CpuTopology decode(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT;
+        }
+        return new CpuTopology(value.split(","));
+    }
+
+    // Method that lists prefixN entries of a directory sorted by N, empty if
+    // the directory can't be listed
+    private static String[] list(NodeIO nodes, String dir, final String prefix) {
+        String[] names = nodes.resolve(dir).list();
+        if (names == null) {
+            return new String[0];
+        }
+        List<String> matches = new ArrayList<>();
+        for (String name : names) {
+            if (name.startsWith(prefix) && number(name.substring(prefix.length()), -1) >= 0) {
+                matches.add(name);
+            }
+        }
+        String[] sorted = matches.toArray(new String[0]);
+        Arrays.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return number(a.substring(prefix.length()), 0) - number(b.substring(prefix.length()), 0);
+            }
+        });
+        return sorted;
+    }
+
+    // Method that returns the lowest cpu of a cluster, or cpu itself if its
+    // related_cpus was missing
+    private static int firstCpu(BitSet cluster, int cpu) {
+        int first = cluster.nextSetBit(0);
+        return first >= 0 && first < cpu ? first : cpu;
+    }
+
+    // Method that parses a cpu list like "0-3,6" or "4 5 6 7", empty if it's missing
+    static BitSet cpus(String list) {
+        BitSet cpus = new BitSet();
+        if (list == null) {
+            return cpus;
+        }
+        for (String item : list.trim().split("[\\s,]+")) {
+            int dash = item.indexOf('-');
+            int first = number(dash < 0 ? item : item.substring(0, dash), -1);
+            int last = dash < 0 ? first : number(item.substring(dash + 1), -1);
+            if (first >= 0 && last >= first) {
+                cpus.set(first, last + 1);
+            }
+        }
+        return cpus;
+    }
+
+    private static int number(String value, int fallback) {
+        if (value.isEmpty() || value.length() > 4) {
+            return fallback;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return fallback;
+            }
+        }
+        return Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,145 @@
+package org.frap129.spectrum;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Descriptions users put in .spectrum_descriptions on external storage, one
+// "profile:description" line per profile. The file is parsed once into a map
+// that is kept in memory and on disk keyed by the file's mtime and size, so
+// later loads only stat the file until it changes.
+class CustomDescriptions {
+
+    // Name of the file on external storage
+    static final String FILE_NAME = ".spectrum_descriptions";
+
+    // Name of the parsed copy in the app's files dir
+    static final String CACHE_FILE_NAME = "descriptions";
+
+    private static final String descPrefix = "desc.";
+
+    private final File mSource;
+    private final File mCache;
+
+    // What the map was parsed from, guarded by this
+    private long mModified = -1;
+    private long mSize = -1;
+    private Map<String, String> mDescriptions;
+
+    CustomDescriptions(File source, File cache) {
+        mSource = source;
+        mCache = cache;
+    }
+
+    // Method that returns the descriptions, reparsing the file only if its
+    // mtime or size changed. Never call it on the main thread.
+    synchronized Map<String, String> load() {
+        if (!mSource.isFile()) {
+            return Collections.emptyMap();
+        }
+        long modified = mSource.lastModified();
+        long size = mSource.length();
+        if (mDescriptions != null && modified == mModified && size == mSize) {
+            return mDescriptions;
+        }
+
+        Map<String, String> descriptions = readCache(modified, size);
+        if (descriptions == null) {
+            try {
+                descriptions = parse(new FileReader(mSource));
+            } catch (IOException e) {
+                // Usually storage permission hasn't been granted yet
+                e.printStackTrace();
+                return Collections.emptyMap();
+            }
+            writeCache(modified, size, descriptions);
+        }
+        mModified = modified;
+        mSize = size;
+        mDescriptions = Collections.unmodifiableMap(descriptions);
+        return mDescriptions;
+    }
+
+    // Method that parses "profile:description" lines, lines without a colon
+    // are ignored and the first line for a profile wins
+    static Map<String, String> parse(Reader in) throws IOException {
+        Map<String, String> descriptions = new HashMap<>();
+        BufferedReader reader = new BufferedReader(in, 512);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.indexOf(':');
+                if (split <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, split).trim().toLowerCase();
+                if (!name.isEmpty() && !descriptions.containsKey(name)) {
+                    descriptions.put(name, line.substring(split + 1).trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return descriptions;
+    }
+
+    private Map<String, String> readCache(long modified, long size) {
+        if (!mCache.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(mCache);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (!String.valueOf(modified).equals(props.getProperty("modified"))
+                || !String.valueOf(size).equals(props.getProperty("size"))) {
+            return null;
+        }
+        Map<String, String> descriptions = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(descPrefix)) {
+                descriptions.put(key.substring(descPrefix.length()), props.getProperty(key));
+            }
+        }
+        return descriptions;
+    }
+
+    private void writeCache(long modified, long size, Map<String, String> descriptions) {
+        Properties props = new Properties();
+        props.setProperty("modified", String.valueOf(modified));
+        props.setProperty("size", String.valueOf(size));
+        for (Map.Entry<String, String> entry : descriptions.entrySet()) {
+            props.setProperty(descPrefix + entry.getKey(), entry.getValue());
+        }
+        // Write aside and rename so a reader never sees half a file
+        File temp = new File(mCache.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mCache)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
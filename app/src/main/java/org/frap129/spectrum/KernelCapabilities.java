@@ -0,0 +1,336 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Snapshot of what the running kernel and device support. It is probed once
+// per process on a background thread and never from a static initializer.
+// The result is persisted keyed by boot id and kernel version, so other
+// processes and later launches in the same boot skip the probe entirely.
+class KernelCapabilities {
+
+    private static final String bootIdPath = "/proc/sys/kernel/random/boot_id";
+
+    private static final String kernelVersionPath = "/proc/version";
+
+    private static final String cacheFileName = "capabilities";
+
+    private static final String supportProp = "spectrum.support";
+
+    private static final String disabledProfilesProp = "spectrum.disabledprofiles";
+
+    private static final String profilesProp = "persist.spectrum.profiles";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "spectrum-probe");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static Future<KernelCapabilities> sProbe;
+
+    private static Handler sMainHandler;
+
+    // Whether the kernel supports Spectrum at all
+    final boolean supported;
+
+    // Whether profiles are driven through the KPM nodes instead of props
+    final boolean kpm;
+
+    // Whether the root session really runs as uid 0
+    final boolean root;
+
+    // Governor to park on while KPM retunes, empty if the kernel has none
+    final String notTunedGov;
+
+    // Comma separated names of profiles the kernel does not offer
+    final String disabledProfiles;
+
+    // Profile definitions the kernel publishes, empty for the classic four
+    final String profiles;
+
+    // One cpufreq policy per cluster
+    final CpuTopology topology;
+
+    interface Callback {
+        void onCapabilities(KernelCapabilities capabilities);
+    }
+
+    // Work that needs the snapshot and its own slow reads, done on the probe
+    // thread, with the result handed back on the main thread
+    interface Task<T> {
+        T inBackground(KernelCapabilities capabilities);
+
+        void onResult(T result);
+    }
+
+    KernelCapabilities(boolean supported, boolean kpm, boolean root,
+                       String notTunedGov, String disabledProfiles, String profiles) {
+        this(supported, kpm, root, notTunedGov, disabledProfiles, profiles, CpuTopology.DEFAULT);
+    }
+
+    KernelCapabilities(boolean supported, boolean kpm, boolean root,
+                       String notTunedGov, String disabledProfiles, String profiles,
+                       CpuTopology topology) {
+        this.supported = supported;
+        this.kpm = kpm;
+        this.root = root;
+        this.notTunedGov = notTunedGov;
+        this.disabledProfiles = disabledProfiles;
+        this.profiles = profiles;
+        this.topology = topology;
+    }
+
+    // Method that tells whether the snapshot may be kept for the boot. Without
+    // root the probe may have missed nodes, and with a cluster offline the
+    // topology misses it, so such snapshots are probed again next time.
+    boolean isFinal() {
+        return root && topology.complete;
+    }
+
+    // Method that starts the probe if nothing has started it yet, or again
+    // if the last one finished without a final snapshot, e.g. su was denied
+    // then and may have been granted since
+    static synchronized Future<KernelCapabilities> probe(Context context) {
+        if (sProbe != null && sProbe.isDone() && !isFinal(sProbe)) {
+            sProbe = null;
+        }
+        if (sProbe == null) {
+            final File cache = new File(context.getApplicationContext().getFilesDir(), cacheFileName);
+            sProbe = sExecutor.submit(new Callable<KernelCapabilities>() {
+                @Override
+                public KernelCapabilities call() {
+                    KernelCapabilities capabilities = load(cache, NodeIO.get(),
+                            RootSession.shell(), RootSession.get());
+                    Profiles.define(capabilities.profiles);
+                    return capabilities;
+                }
+            });
+        }
+        return sProbe;
+    }
+
+    private static boolean isFinal(Future<KernelCapabilities> probe) {
+        try {
+            return probe.get().isFinal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Method that hands the snapshot to callback on the main thread
+    static void request(final Context context, final Callback callback) {
+        final Future<KernelCapabilities> probe = probe(context);
+        final Handler handler = mainHandler();
+        if (probe.isDone() && Looper.myLooper() == Looper.getMainLooper()) {
+            callback.onCapabilities(await(probe));
+            return;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final KernelCapabilities capabilities = await(probe);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCapabilities(capabilities);
+                    }
+                });
+            }
+        });
+    }
+
+    // Method that runs task off the main thread once the snapshot is ready,
+    // then hands its result to the main thread
+    static <T> void request(final Context context, final Task<T> task) {
+        final Future<KernelCapabilities> probe = probe(context);
+        final Handler handler = mainHandler();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result = task.inBackground(await(probe));
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.onResult(result);
+                    }
+                });
+            }
+        });
+    }
+
+    // Method that blocks until the snapshot is ready, never call it on the main thread
+    static KernelCapabilities await(Context context) {
+        return await(probe(context));
+    }
+
+    // Method that waits for one probe, not a later one started meanwhile
+    private static KernelCapabilities await(Future<KernelCapabilities> probe) {
+        try {
+            return probe.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return new KernelCapabilities(false, false, false, "", "", "");
+    }
+
+    // Method that returns the persisted snapshot for this boot, probing and
+    // persisting a fresh one if the boot id or kernel changed since
+    static KernelCapabilities load(File cache, NodeIO nodes, RootSession shell,
+                                   RootSession session) {
+        String bootId = orEmpty(nodes.read(bootIdPath));
+        String kernel = orEmpty(nodes.read(kernelVersionPath));
+        KernelCapabilities capabilities = readCache(cache, bootId, kernel);
+        if (capabilities != null) {
+            return capabilities;
+        }
+        capabilities = load(nodes, shell, session);
+        if (!bootId.isEmpty() && capabilities.isFinal()) {
+            writeCache(cache, bootId, kernel, capabilities);
+        }
+        return capabilities;
+    }
+
+    // Method that probes the kernel, this is where all the root I/O happens.
+    // All props come from one getprop and all KPM nodes from one batched
+    // read, so the cost doesn't grow with the number of profiles. Props are
+    // public, so getprop runs in the plain shell and never prompts for su.
+    static KernelCapabilities load(NodeIO nodes, RootSession shell, RootSession session) {
+        boolean kpm;
+        Map<String, String> props = getprops(shell);
+        String support = orEmpty(props.get(supportProp));
+        String disabled = "";
+        String notTuned = "";
+        String profiles = "";
+        if (support.isEmpty()) {
+            kpm = true;
+            String[] values = nodes.readAll(new String[]{Utils.kpmSupport,
+                    Utils.kpmDisabledProfilesPath, Utils.kpmNotTuned, Utils.kpmProfilesPath});
+            support = orEmpty(values[0]);
+            disabled = orEmpty(values[1]);
+            notTuned = orEmpty(values[2]);
+            profiles = orEmpty(values[3]);
+        } else {
+            kpm = false;
+        }
+        if (disabled.isEmpty()) {
+            disabled = orEmpty(props.get(disabledProfilesProp));
+        }
+        if (profiles.isEmpty()) {
+            profiles = orEmpty(props.get(profilesProp));
+        }
+        return new KernelCapabilities(!support.isEmpty(), kpm, session.available(),
+                notTuned, disabled, profiles, CpuTopology.discover(nodes));
+    }
+
+    private static KernelCapabilities readCache(File cache, String bootId, String kernel) {
+        if (bootId.isEmpty() || !cache.exists()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(cache);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (!bootId.equals(props.getProperty("bootId"))
+                || !kernel.equals(props.getProperty("kernel"))) {
+            return null;
+        }
+        return new KernelCapabilities(
+                Boolean.parseBoolean(props.getProperty("supported")),
+                Boolean.parseBoolean(props.getProperty("kpm")),
+                Boolean.parseBoolean(props.getProperty("root")),
+                props.getProperty("notTunedGov", ""),
+                props.getProperty("disabledProfiles", ""),
+                props.getProperty("profiles", ""),
+                CpuTopology.decode(props.getProperty("topology")));
+    }
+
+    private static void writeCache(File cache, String bootId, String kernel,
+                                   KernelCapabilities capabilities) {
+        Properties props = new Properties();
+        props.setProperty("bootId", bootId);
+        props.setProperty("kernel", kernel);
+        props.setProperty("supported", String.valueOf(capabilities.supported));
+        props.setProperty("kpm", String.valueOf(capabilities.kpm));
+        props.setProperty("root", String.valueOf(capabilities.root));
+        props.setProperty("notTunedGov", capabilities.notTunedGov);
+        props.setProperty("disabledProfiles", capabilities.disabledProfiles);
+        props.setProperty("profiles", capabilities.profiles);
+        props.setProperty("topology", capabilities.topology.encode());
+        // Write aside and rename so a reader in another process never sees half a file
+        File temp = new File(cache.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(cache)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Method that reads every Spectrum prop with a single getprop, whose
+    // output has one "[name]: [value]" line per prop
+    private static Map<String, String> getprops(RootSession shell) {
+        Map<String, String> props = new HashMap<>();
+        List<String> result = shell.run("getprop | grep spectrum");
+        if (result == null) {
+            return props;
+        }
+        for (String line : result) {
+            int split = line.indexOf("]: [");
+            if (line.startsWith("[") && line.endsWith("]") && split > 0) {
+                props.put(line.substring(1, split), line.substring(split + 4, line.length() - 1));
+            }
+        }
+        return props;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static synchronized Handler mainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sMainHandler;
+    }
+}
@@ -7,43 +7,26 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.content.res.ColorStateList;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
-import androidx.core.content.ContextCompat;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.cardview.widget.CardView;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.View;
-import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.List;
-import java.util.Objects;
-
-import eu.chainfire.libsuperuser.Shell;
-
-import static org.frap129.spectrum.Utils.KPM;
-import static org.frap129.spectrum.Utils.checkSupport;
-import static org.frap129.spectrum.Utils.cpuScalingGovernorPath;
-import static org.frap129.spectrum.Utils.finalGov;
-import static org.frap129.spectrum.Utils.getCustomDesc;
-import static org.frap129.spectrum.Utils.kernelProp;
-import static org.frap129.spectrum.Utils.kpmFinal;
-import static org.frap129.spectrum.Utils.kpmPath;
-import static org.frap129.spectrum.Utils.kpmPropPath;
-import static org.frap129.spectrum.Utils.listToString;
-import static org.frap129.spectrum.Utils.notTunedGov;
-import static org.frap129.spectrum.Utils.profileProp;
-import static org.frap129.spectrum.Utils.setProfile;
+import java.io.File;
+import java.util.Map;
 
 public class MainActivity extends AppCompatActivity {
 
-    private CardView oldCard;
-    private List<String> suResult = null;
+    private ProfileAdapter adapter;
+    private Map<String, String> customDescs;
+    private KernelCapabilities capabilities;
     private int notaneasteregg = 0;
     private static final int PERMISSIONS_REQUEST = 0;
 
@@ -52,18 +35,37 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Define existing CardViews
-        final CardView card0 = (CardView) findViewById(R.id.card0);
-        final CardView card1 = (CardView) findViewById(R.id.card1);
-        final CardView card2 = (CardView) findViewById(R.id.card2);
-        final CardView card3 = (CardView) findViewById(R.id.card3);
-        final int balColor = ContextCompat.getColor(this, R.color.colorBalance);
-        final int perColor = ContextCompat.getColor(this, R.color.colorPerformance);
-        final int batColor = ContextCompat.getColor(this, R.color.colorBattery);
-        final int gamColor = ContextCompat.getColor(this, R.color.colorGaming);
+        // Keep the quick settings tile in step with profiles picked here
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            ProfileTile.watch(this);
+
+        // The splash already started probing the kernel, finish setting up
+        // once the kernel is known and fill in descriptions as they come
+        WarmUp.take(this).request(new WarmUp.Callback() {
+            @Override
+            public void onReady(WarmUp.Result result) {
+                if (!isFinishing() && !isDestroyed()) {
+                    init(result);
+                }
+            }
+
+            @Override
+            public void onDescriptions(Map<String, String> descriptions) {
+                // No cards if the kernel wasn't supported or rooted
+                if (adapter != null && !isFinishing() && !isDestroyed()) {
+                    showCustomDesc(descriptions);
+                }
+            }
+        });
+    }
+
+    // Method that sets up the cards for the probed kernel
+    private void init(WarmUp.Result result) {
+        KernelCapabilities caps = result.capabilities;
+        capabilities = caps;
 
         // Check for Spectrum Support
-        if (!checkSupport(this)) {
+        if (!caps.supported) {
             new AlertDialog.Builder(this)
                     .setTitle(getString(R.string.no_spectrum_support_dialog_title))
                     .setMessage(getString(R.string.no_spectrum_support_dialog_message))
@@ -80,7 +82,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // Ensure root access
-        if (!Utils.checkSU()) {
+        if (!caps.root) {
             new AlertDialog.Builder(this)
                     .setTitle(getString(R.string.no_root_detected_dialog_title))
                     .setMessage(getString(R.string.no_root_detected_dialog_message))
@@ -102,50 +104,40 @@ public class MainActivity extends AppCompatActivity {
         }
 
 
-        String disabledProfiles = Utils.disabledProfiles();
-        String[] profilesToDisable = disabledProfiles.split(",");
-        for (String profile : profilesToDisable){
-            switch (profile) {
-                case "balance":
-                    card0.setVisibility(View.GONE);
-                    break;
-                case "performance":
-                    card1.setVisibility(View.GONE);
-                    break;
-                case "battery":
-                    card2.setVisibility(View.GONE);
-                    break;
-                case "gaming":
-                    card3.setVisibility(View.GONE);
-                    break;
-                default:
-                    break;
-            }
-        }
+        // One card per profile the kernel offers, set profile on click
+        adapter = new ProfileAdapter(this, Profiles.parseDisabled(caps.disabledProfiles),
+                new ProfileAdapter.Listener() {
+                    @Override
+                    public void onProfileClick(Profiles.Profile profile) {
+                        cardClick(profile.id);
+                        easterEgg(profile.id);
+                    }
+                });
+        RecyclerView list = (RecyclerView) findViewById(R.id.profiles);
+        list.setLayoutManager(new LinearLayoutManager(this));
+        list.setAdapter(adapter);
 
-        // Get profile descriptions
-        getDesc();
+        // Show the kernel name, the user's descriptions follow on their own
+        showDesc(result.kernel);
 
         // Highlight current profile
-        initSelected();
-
-        // Set system property on click
-        card0.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-            cardClick(card0, 0, balColor);
-                if (notaneasteregg == 1) {
-                    notaneasteregg++;
-                } else {
-                    notaneasteregg = 0;
-                }
-            }
-        });
+        showSelected(result.profile);
+    }
 
-        card1.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                cardClick(card1, 1, perColor);
+    // Method that advances the profile loader easter egg: gaming, balance,
+    // battery and then performance opens the loader
+    private void easterEgg(int profile) {
+        switch (profile) {
+            case Profiles.GAMING:
+                notaneasteregg = 1;
+                break;
+            case Profiles.BALANCE:
+                notaneasteregg = notaneasteregg == 1 ? 2 : 0;
+                break;
+            case Profiles.BATTERY:
+                notaneasteregg = notaneasteregg == 2 ? 3 : 0;
+                break;
+            case Profiles.PERFORMANCE:
                 if (notaneasteregg == 3) {
                     Intent intent = new Intent(MainActivity.this, ProfileLoaderActivity.class);
                     startActivity(intent);
@@ -153,130 +145,77 @@ public class MainActivity extends AppCompatActivity {
                 } else {
                     notaneasteregg = 0;
                 }
-            }
-        });
-
-        card2.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                cardClick(card2, 2, batColor);
-                if (notaneasteregg == 2) {
-                    notaneasteregg++;
-                } else {
-                    notaneasteregg = 0;
-                }
-            }
-        });
-
-        card3.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                cardClick(card3, 3, gamColor);
-                notaneasteregg = 1;
-            }
-        });
-
-    }
-
-    // Method that detects the selected profile on launch
-    private void initSelected() {
-        SharedPreferences profile = this.getSharedPreferences("profile", Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = profile.edit();
-
-        if(KPM) {
-            suResult = Shell.SU.run(String.format("cat %s", kpmPath));
-        } else {
-            suResult = Shell.SU.run(String.format("getprop %s", profileProp));
+                break;
+            default:
+                notaneasteregg = 0;
+                break;
         }
+    }
 
-        if (suResult != null) {
-            String result = listToString(suResult);
-
-            if(result.contains("-1")) {
-                // Default KPM value, just in case
-            } else if (result.contains("0")) {
-                CardView card0 = (CardView) findViewById(R.id.card0);
-                int balColor = ContextCompat.getColor(this, R.color.colorBalance);
-                card0.setCardBackgroundColor(balColor);
-                oldCard = card0;
-                editor.putString("profile", "balanced");
-                editor.apply();
-            } else if (result.contains("1")) {
-                CardView card1 = (CardView) findViewById(R.id.card1);
-                int perColor = ContextCompat.getColor(this, R.color.colorPerformance);
-                card1.setCardBackgroundColor(perColor);
-                oldCard = card1;
-                editor.putString("profile", "performance");
-                editor.apply();
-            } else if (result.contains("2")) {
-                CardView card2 = (CardView) findViewById(R.id.card2);
-                int batColor = ContextCompat.getColor(this, R.color.colorBattery);
-                card2.setCardBackgroundColor(batColor);
-                oldCard = card2;
-                editor.putString("profile", "battery");
-                editor.apply();
-            } else if (result.contains("3")) {
-                CardView card3 = (CardView) findViewById(R.id.card3);
-                int gamColor = ContextCompat.getColor(this, R.color.colorGaming);
-                card3.setCardBackgroundColor(gamColor);
-                oldCard = card3;
-                editor.putString("profile", "gaming");
-                editor.apply();
-            } else {
-                editor.putString("profile", "custom");
-                editor.apply();
-            }
+    // Method that highlights the profile read from the kernel
+    private void showSelected(String result) {
+        int id = Profiles.parseKernel(result);
+        if (id == Profiles.NONE) {
+            // Default KPM value, just in case
+            return;
         }
+        adapter.setSelected(id);
+        ActiveProfile.set(this, id);
     }
 
-    // Method that reads and sets profile descriptions
-    private void getDesc() {
-        TextView desc0 = (TextView) findViewById(R.id.desc0);
-        TextView desc1 = (TextView) findViewById(R.id.desc1);
-        TextView desc2 = (TextView) findViewById(R.id.desc2);
-        TextView desc3 = (TextView) findViewById(R.id.desc3);
-        String balDesc;
-        String kernel;
+    // Method that puts the kernel name in the balance description, unless
+    // the user replaced that description
+    private void showDesc(String kernel) {
+        if (kernel == null || kernel.isEmpty())
+            return;
+        Profiles.Profile balance = Profiles.get(Profiles.BALANCE);
+        if (balance == null || (customDescs != null && customDescs.containsKey(balance.name)))
+            return;
+        String balDesc = ProfileResources.description(this, balance);
+        adapter.setDescription(Profiles.BALANCE, balDesc.replaceAll("\\bElectron\\b", kernel));
+    }
 
-        if(KPM){
-            suResult = Shell.SU.run(String.format("cat %s", kpmPropPath));
-        } else {
-            suResult = Shell.SU.run(String.format("getprop %s", kernelProp));
+    // Method that shows the descriptions from the user's descriptions file,
+    // replacing the kernel name in the balance one if the user has their own
+    private void showCustomDesc(Map<String, String> descriptions) {
+        customDescs = descriptions;
+        for (int id = 0; id < Profiles.count(); id++) {
+            Profiles.Profile profile = Profiles.get(id);
+            if (profile == null)
+                continue;
+            String custom = descriptions.get(profile.name);
+            if (custom != null)
+                adapter.setDescription(id, custom);
         }
-        kernel = listToString(suResult);
-        if (kernel.isEmpty())
-            return;
-        balDesc = desc0.getText().toString();
-        balDesc = balDesc.replaceAll("\\bElectron\\b", kernel);
-        desc0.setText(balDesc);
+    }
 
-        if (Utils.supportsCustomDesc()){
-            if(!Objects.equals(getCustomDesc("balance"), "fail")) desc0.setText(getCustomDesc("balance"));
-            if(!Objects.equals(getCustomDesc("performance"), "fail")) desc1.setText(getCustomDesc("performance"));
-            if(!Objects.equals(getCustomDesc("battery"), "fail")) desc2.setText(getCustomDesc("battery"));
-            if(!Objects.equals(getCustomDesc("gaming"), "fail")) desc3.setText(getCustomDesc("gaming"));
+    // Method that completes card onClick tasks. The switch itself runs on the
+    // switcher thread, rapid taps collapse into the last selected profile.
+    private void cardClick(int prof) {
+        if (adapter.getSelected() != prof) {
+            adapter.setSelected(prof);
+            ProfileSwitcher.get().switchTo(capabilities, prof, new ProfileSwitcher.Callback() {
+                @Override
+                public void onProfileApplied(int profile, boolean success) {
+                    if (!success)
+                        return;
+                    ActiveProfile.set(MainActivity.this, profile);
+                }
+            });
         }
     }
 
-    // Method that completes card onClick tasks
-    private void cardClick(CardView card, int prof, int color) {
-        if (oldCard != card) {
-            ColorStateList ogColor = card.getCardBackgroundColor();
-            card.setCardBackgroundColor(color);
-            if (oldCard != null)
-                oldCard.setCardBackgroundColor(ogColor);
-            setProfile(prof);
-            if (KPM) {
-                Shell.SU.run(String.format("echo %s > %s", notTunedGov, cpuScalingGovernorPath));
-                finalGov = listToString(Shell.SU.run(String.format("cat %s", kpmFinal)));
-                Shell.SU.run(String.format("echo %s > %s", finalGov, cpuScalingGovernorPath));
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Keep the metrics file current for when dumpsys isn't at hand
+        final File metrics = new File(getFilesDir(), Metrics.FILE_NAME);
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                Metrics.get().writeTo(metrics);
             }
-            oldCard = card;
-            SharedPreferences profile = this.getSharedPreferences("profile", Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = profile.edit();
-            editor.putString("profile", String.valueOf(prof));
-            editor.apply();
-        }
+        });
     }
 
     @Override
@@ -0,0 +1,198 @@
+package org.frap129.spectrum;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and latency histograms for the profile switch and root I/O paths.
+// Everything lives in arrays allocated up front and recording never
+// allocates, so it stays on in the hot paths. The numbers are dumped through
+// dumpsys on the tile service and to a text file in the app's files dir.
+class Metrics {
+
+    static final String FILE_NAME = "metrics.txt";
+
+    static final int SWITCHES = 0;
+    static final int SWITCH_FAILURES = 1;
+    static final int ROOT_COMMANDS = 2;
+    static final int ROOT_FAILURES = 3;
+    static final int ROOT_TIMEOUTS = 4;
+    static final int NODE_READS = 5;
+    static final int NODE_WRITES = 6;
+    // Node accesses that had to go through the root shell
+    static final int NODE_DENIED = 7;
+    static final int CUSTOM_APPLIES = 8;
+    static final int CUSTOM_APPLY_FAILURES = 9;
+    static final int BOOT_APPLIES = 10;
+    // Custom profile writes that reached a node, and ones the diff found in effect
+    static final int CUSTOM_WRITES = 11;
+    static final int CUSTOM_WRITES_SKIPPED = 12;
+
+    private static final String[] sCounterNames = {
+            "switches", "switch_failures", "root_commands", "root_failures", "root_timeouts",
+            "node_reads", "node_writes", "node_denied", "custom_applies",
+            "custom_apply_failures", "boot_applies", "custom_writes", "custom_writes_skipped",
+    };
+
+    // Profile switch from request to applied, including time spent queued
+    static final int SWITCH_LATENCY = 0;
+    // One batch of commands through the root shell
+    static final int ROOT_LATENCY = 1;
+    static final int NODE_READ_LATENCY = 2;
+    static final int NODE_WRITE_LATENCY = 3;
+    static final int CUSTOM_APPLY_LATENCY = 4;
+    // BOOT_COMPLETED received to custom profile applied
+    static final int BOOT_LATENCY = 5;
+
+    private static final String[] sHistogramNames = {
+            "switch", "root", "node_read", "node_write", "custom_apply", "boot",
+    };
+
+    // Upper bounds of the buckets in microseconds, the last bucket takes the rest
+    private static final long[] sBounds = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+            500000, 1000000, 2500000, 10000000, 30000000, 60000000,
+    };
+
+    static final int BUCKETS = sBounds.length + 1;
+
+    private static final Metrics sInstance = new Metrics();
+
+    private final AtomicLongArray mCounters = new AtomicLongArray(sCounterNames.length);
+    // Histogram h owns buckets h * BUCKETS to (h + 1) * BUCKETS - 1
+    private final AtomicLongArray mBuckets = new AtomicLongArray(sHistogramNames.length * BUCKETS);
+    private final AtomicLongArray mSums = new AtomicLongArray(sHistogramNames.length);
+    private final AtomicLongArray mMax = new AtomicLongArray(sHistogramNames.length);
+
+    static Metrics get() {
+        return sInstance;
+    }
+
+    // Method that returns a start time for stop()
+    static long start() {
+        return System.nanoTime();
+    }
+
+    void increment(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    void add(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    // Method that records the time since start, as returned by start()
+    void stop(int histogram, long start) {
+        record(histogram, (System.nanoTime() - start) / 1000);
+    }
+
+    void record(int histogram, long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        mBuckets.incrementAndGet(histogram * BUCKETS + bucketOf(micros));
+        mSums.addAndGet(histogram, micros);
+        long max = mMax.get(histogram);
+        while (micros > max && !mMax.compareAndSet(histogram, max, micros)) {
+            max = mMax.get(histogram);
+        }
+    }
+
+    static int bucketOf(long micros) {
+        for (int i = 0; i < sBounds.length; i++) {
+            if (micros <= sBounds[i]) {
+                return i;
+            }
+        }
+        return sBounds.length;
+    }
+
+    long count(int counter) {
+        return mCounters.get(counter);
+    }
+
+    long samples(int histogram) {
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            samples += mBuckets.get(histogram * BUCKETS + i);
+        }
+        return samples;
+    }
+
+    // Method that returns the upper bound of the bucket holding the given
+    // percentile, -1 for the open ended last bucket or if nothing was recorded
+    long percentile(int histogram, int percent) {
+        long samples = samples(histogram);
+        if (samples == 0) {
+            return -1;
+        }
+        long rank = (samples * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < sBounds.length; i++) {
+            seen += mBuckets.get(histogram * BUCKETS + i);
+            if (seen >= rank) {
+                return sBounds[i];
+            }
+        }
+        return -1;
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Counters:");
+        for (int i = 0; i < sCounterNames.length; i++) {
+            writer.println("  " + sCounterNames[i] + ": " + mCounters.get(i));
+        }
+        writer.println("Latency (us, percentiles are bucket upper bounds):");
+        for (int h = 0; h < sHistogramNames.length; h++) {
+            long samples = samples(h);
+            writer.print("  " + sHistogramNames[h] + ": n=" + samples);
+            if (samples > 0) {
+                writer.print(" mean=" + mSums.get(h) / samples + " max=" + mMax.get(h)
+                        + " p50=" + bound(percentile(h, 50))
+                        + " p90=" + bound(percentile(h, 90))
+                        + " p99=" + bound(percentile(h, 99)));
+            }
+            writer.println();
+            if (samples == 0) {
+                continue;
+            }
+            writer.print("   ");
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = mBuckets.get(h * BUCKETS + i);
+                if (count > 0) {
+                    writer.print(" " + (i < sBounds.length ? "<=" + sBounds[i] : ">" + sBounds[i - 1])
+                            + ":" + count);
+                }
+            }
+            writer.println();
+        }
+        writer.flush();
+    }
+
+    // Method that dumps to a file, written aside and renamed so readers never
+    // see half a dump
+    void writeTo(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), "UTF-8"));
+            try {
+                dump(writer);
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String bound(long bound) {
+        return bound >= 0 ? String.valueOf(bound) : ">" + sBounds[sBounds.length - 1];
+    }
+}
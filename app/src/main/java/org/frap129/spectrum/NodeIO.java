@@ -0,0 +1,241 @@
+package org.frap129.spectrum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads and writes sysfs/procfs nodes with plain file channels, and only
+// falls back to the root shell when the kernel denies us access.
+class NodeIO {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String NODE_MARKER = "__spectrum_node__";
+
+    private static final String WRITE_MARKER = "__spectrum_write_failed__";
+
+    // Results of a direct write attempt
+    static final int WRITE_OK = 0;
+    static final int WRITE_DENIED = 1;
+    static final int WRITE_FAILED = 2;
+
+    private static NodeIO sInstance;
+
+    private final File mRoot;
+    private final RootSession mSession;
+
+    NodeIO(File root, RootSession session) {
+        mRoot = root;
+        mSession = session;
+    }
+
+    // Method that returns the node accessor for the real filesystem
+    static synchronized NodeIO get() {
+        if (sInstance == null) {
+            sInstance = new NodeIO(new File("/"), RootSession.get());
+        }
+        return sInstance;
+    }
+
+    File resolve(String path) {
+        return new File(mRoot, path);
+    }
+
+    // Method that returns the node contents without trailing newlines,
+    // or null if the node is missing or unreadable
+    String read(String path) {
+        File node = resolve(path);
+        try {
+            return readDirect(node);
+        } catch (IOException e) {
+            if (!isPermissionDenied(e)) {
+                return null;
+            }
+        }
+        Metrics.get().increment(Metrics.NODE_DENIED);
+        List<String> result = mSession.run("cat " + quote(node.getPath()));
+        return result != null ? join(result) : null;
+    }
+
+    // Method that reads many nodes at once. Nodes we can open are read
+    // directly and all the ones that need root share a single shell command.
+    String[] readAll(String[] paths) {
+        String[] values = new String[paths.length];
+        List<Integer> denied = new ArrayList<>();
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                values[i] = readDirect(resolve(paths[i]));
+            } catch (IOException e) {
+                if (isPermissionDenied(e)) {
+                    Metrics.get().increment(Metrics.NODE_DENIED);
+                    denied.add(i);
+                }
+            }
+        }
+        if (denied.isEmpty()) {
+            return values;
+        }
+
+        String[] commands = new String[denied.size()];
+        for (int i = 0; i < commands.length; i++) {
+            // The trailing echo ends the line even if the node has no newline
+            commands[i] = "echo " + NODE_MARKER + "; cat "
+                    + quote(resolve(paths[denied.get(i)]).getPath()) + "; echo";
+        }
+        RootSession.Result result = mSession.exec(RootSession.DEFAULT_TIMEOUT_MS, commands);
+        if (result == null) {
+            return values;
+        }
+        int current = -1;
+        List<String> lines = new ArrayList<>();
+        for (String line : result.output) {
+            if (line.equals(NODE_MARKER)) {
+                if (current >= 0) {
+                    values[denied.get(current)] = joinTrimmed(lines);
+                }
+                current++;
+                lines.clear();
+            } else {
+                lines.add(line);
+            }
+        }
+        if (current >= 0 && current < denied.size()) {
+            values[denied.get(current)] = joinTrimmed(lines);
+        }
+        return values;
+    }
+
+    // Method that writes a value to a node, returns false if the write failed
+    boolean write(String path, String value) {
+        int result = tryWrite(path, value);
+        if (result != WRITE_DENIED) {
+            return result == WRITE_OK;
+        }
+        RootSession.Result shell = mSession.exec(RootSession.DEFAULT_TIMEOUT_MS,
+                shellWrite(path, value));
+        return shell != null && shell.isSuccess();
+    }
+
+    // Method that writes one value to many nodes in order. Nodes are written
+    // directly until one needs root, from there on the rest share a single
+    // shell command so none overtakes it. Returns false if any write failed.
+    boolean writeAll(String[] paths, String value) {
+        boolean success = true;
+        List<String> commands = new ArrayList<>();
+        for (String path : paths) {
+            int result = commands.isEmpty() ? tryWrite(path, value) : WRITE_DENIED;
+            if (result == WRITE_DENIED) {
+                commands.add(shellWrite(path, value) + " || echo " + WRITE_MARKER);
+            } else if (result == WRITE_FAILED) {
+                success = false;
+            }
+        }
+        if (commands.isEmpty()) {
+            return success;
+        }
+        RootSession.Result result = mSession.exec(RootSession.DEFAULT_TIMEOUT_MS,
+                commands.toArray(new String[0]));
+        return success && result != null && !result.output.contains(WRITE_MARKER);
+    }
+
+    // Method that writes without ever touching the shell, so callers can
+    // batch the writes that need root themselves
+    int tryWrite(String path, String value) {
+        try {
+            writeDirect(resolve(path), value);
+            return WRITE_OK;
+        } catch (IOException e) {
+            if (!isPermissionDenied(e)) {
+                return WRITE_FAILED;
+            }
+            Metrics.get().increment(Metrics.NODE_DENIED);
+            return WRITE_DENIED;
+        }
+    }
+
+    // Method that returns the shell command equivalent of write()
+    String shellWrite(String path, String value) {
+        return "echo -n " + quote(value) + " > " + quote(resolve(path).getPath());
+    }
+
+    // Method that reads a node without the shell, test doubles override it
+    // to add latency or deny access
+    String readDirect(File node) throws IOException {
+        Metrics metrics = Metrics.get();
+        long start = Metrics.start();
+        metrics.increment(Metrics.NODE_READS);
+        FileInputStream in = new FileInputStream(node);
+        try {
+            FileChannel channel = in.getChannel();
+            // Nodes report a size of 0 or 4096 regardless of content, so read until EOF
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            while (channel.read(buffer) >= 0) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+            }
+            int end = buffer.position();
+            byte[] data = buffer.array();
+            while (end > 0 && (data[end - 1] == '\n' || data[end - 1] == '\r')) {
+                end--;
+            }
+            return new String(data, 0, end, UTF_8);
+        } finally {
+            in.close();
+            metrics.stop(Metrics.NODE_READ_LATENCY, start);
+        }
+    }
+
+    // Method that writes a node without the shell, test doubles override it
+    // to add latency or deny access
+    void writeDirect(File node, String value) throws IOException {
+        Metrics metrics = Metrics.get();
+        long start = Metrics.start();
+        metrics.increment(Metrics.NODE_WRITES);
+        FileOutputStream out = new FileOutputStream(node);
+        try {
+            // A node takes the whole value in one write() call, never split it
+            out.getChannel().write(ByteBuffer.wrap(value.getBytes(UTF_8)));
+        } finally {
+            out.close();
+            metrics.stop(Metrics.NODE_WRITE_LATENCY, start);
+        }
+    }
+
+    private static boolean isPermissionDenied(IOException e) {
+        String message = e.getMessage();
+        return message != null
+                && (message.contains("Permission denied") || message.contains("EACCES")
+                || message.contains("Operation not permitted") || message.contains("EPERM"));
+    }
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private static String joinTrimmed(List<String> lines) {
+        int end = lines.size();
+        while (end > 0 && lines.get(end - 1).isEmpty()) {
+            end--;
+        }
+        return join(lines.subList(0, end));
+    }
+
+    private static String join(List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) builder.append('\n');
+            builder.append(lines.get(i));
+        }
+        return builder.toString();
+    }
+}
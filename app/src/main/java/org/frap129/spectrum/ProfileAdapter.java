@@ -0,0 +1,138 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.cardview.widget.CardView;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Cards for the profiles the kernel offers. Only the cards on screen are
+// ever inflated and bound, so a kernel may define as many profiles as it likes.
+class ProfileAdapter extends RecyclerView.Adapter<ProfileAdapter.Holder> {
+
+    interface Listener {
+        void onProfileClick(Profiles.Profile profile);
+    }
+
+    static class Holder extends RecyclerView.ViewHolder {
+        final CardView card;
+        final TextView name;
+        final ImageView icon;
+        final TextView desc;
+
+        Holder(View view) {
+            super(view);
+            card = (CardView) view;
+            name = (TextView) view.findViewById(R.id.name);
+            icon = (ImageView) view.findViewById(R.id.icon);
+            desc = (TextView) view.findViewById(R.id.desc);
+        }
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final int mCardColor;
+    private final List<Profiles.Profile> mProfiles = new ArrayList<>();
+    // Descriptions that replace the ones the profiles come with, by id
+    private final Map<Integer, String> mDescriptions = new HashMap<>();
+    private int mSelected = Profiles.NONE;
+
+    ProfileAdapter(Context context, long disabled, Listener listener) {
+        mContext = context;
+        mListener = listener;
+        mCardColor = ContextCompat.getColor(context, R.color.cardBackground);
+        for (int id = 0; id < Profiles.count(); id++) {
+            Profiles.Profile profile = Profiles.get(id);
+            if (profile != null && !Profiles.isDisabled(disabled, id)) {
+                mProfiles.add(profile);
+            }
+        }
+        setHasStableIds(true);
+    }
+
+    int getSelected() {
+        return mSelected;
+    }
+
+    // Method that highlights the card of a profile, rebinding only the two
+    // cards whose color changes
+    void setSelected(int id) {
+        int old = positionOf(mSelected);
+        mSelected = id;
+        if (old >= 0) {
+            notifyItemChanged(old);
+        }
+        int position = positionOf(id);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
+    }
+
+    void setDescription(int id, String description) {
+        mDescriptions.put(id, description);
+        int position = positionOf(id);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
+    }
+
+    String getDescription(Profiles.Profile profile) {
+        String description = mDescriptions.get(profile.id);
+        return description != null ? description : ProfileResources.description(mContext, profile);
+    }
+
+    private int positionOf(int id) {
+        for (int i = 0; i < mProfiles.size(); i++) {
+            if (mProfiles.get(i).id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Holder onCreateViewHolder(ViewGroup parent, int viewType) {
+        final Holder holder = new Holder(LayoutInflater.from(mContext)
+                .inflate(R.layout.profile_card, parent, false));
+        holder.card.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position >= 0) {
+                    mListener.onProfileClick(mProfiles.get(position));
+                }
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(Holder holder, int position) {
+        Profiles.Profile profile = mProfiles.get(position);
+        holder.name.setText(ProfileResources.label(mContext, profile));
+        holder.icon.setImageResource(ProfileResources.icon(profile));
+        holder.desc.setText(getDescription(profile));
+        holder.card.setCardBackgroundColor(profile.id == mSelected
+                ? ProfileResources.color(mContext, profile) : mCardColor);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mProfiles.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mProfiles.get(position).id;
+    }
+}
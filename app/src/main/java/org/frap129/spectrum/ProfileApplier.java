@@ -0,0 +1,264 @@
+package org.frap129.spectrum;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Applies a profile in file order. Consecutive writes that touch unrelated
+// directories form a stage, and the direct writes of a stage run on a small
+// worker pool. Writes that need root share one ordered shell batch for the
+// whole profile, and once one is queued everything after it joins the batch
+// so nothing overtakes it. In diff mode every node is read once up front.
+class ProfileApplier {
+
+    static final int MAX_WORKERS = 4;
+
+    private final NodeIO mNodes;
+    private final RootSession mSession;
+    private final boolean mDiff;
+    private final int mWorkers;
+
+    private int mWritten = 0;
+    private int mSkipped = 0;
+    private int mFailed = 0;
+
+    ProfileApplier(NodeIO nodes, RootSession session, boolean diff) {
+        this(nodes, session, diff,
+                Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    ProfileApplier(NodeIO nodes, RootSession session, boolean diff, int workers) {
+        mNodes = nodes;
+        mSession = session;
+        mDiff = diff;
+        mWorkers = Math.max(1, workers);
+    }
+
+    // Method that applies a profile file through its compiled plan, blocks
+    // until done and returns false if the file or any write failed
+    static boolean applyFile(NodeIO nodes, RootSession session, File plan, File source) {
+        Metrics metrics = Metrics.get();
+        long start = Metrics.start();
+        ProfileApplier applier = new ProfileApplier(nodes, session, true);
+        boolean success;
+        try {
+            applier.apply(CompiledProfile.loadOrCompile(plan, source));
+            success = applier.getFailed() == 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            success = false;
+        }
+        // Whether the diff spares any writes shows up next to the ones made
+        metrics.add(Metrics.CUSTOM_WRITES, applier.getWritten());
+        metrics.add(Metrics.CUSTOM_WRITES_SKIPPED, applier.getSkipped());
+        metrics.increment(success ? Metrics.CUSTOM_APPLIES : Metrics.CUSTOM_APPLY_FAILURES);
+        metrics.stop(Metrics.CUSTOM_APPLY_LATENCY, start);
+        return success;
+    }
+
+    // Method that applies every write of the plan and blocks until done
+    void apply(CompiledProfile profile) throws IOException {
+        final List<String> paths = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+        profile.execute(new ProfileParser.Sink() {
+            @Override
+            public void onWrite(String path, String value) {
+                paths.add(path);
+                values.add(value);
+            }
+        });
+        apply(paths, values);
+    }
+
+    void apply(List<String> paths, List<String> values) {
+        if (mDiff) {
+            List<String> changedPaths = new ArrayList<>();
+            List<String> changedValues = new ArrayList<>();
+            diff(paths, values, changedPaths, changedValues);
+            paths = changedPaths;
+            values = changedValues;
+        }
+        ProfileWriter writer = new ProfileWriter(mNodes, mSession);
+        ExecutorService pool = null;
+        try {
+            for (int[] stage : stages(paths)) {
+                if (writer.hasQueued() || stage[1] - stage[0] == 1 || mWorkers == 1) {
+                    for (int i = stage[0]; i < stage[1]; i++) {
+                        writer.onWrite(paths.get(i), values.get(i));
+                    }
+                    continue;
+                }
+                if (pool == null) {
+                    pool = newPool();
+                }
+                writeStage(pool, paths, values, stage, writer);
+            }
+            writer.flush();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        mWritten += writer.getWritten();
+        mFailed += writer.getFailed();
+    }
+
+    // Method that drops writes whose node already holds the value, reading
+    // every node in one go. A governor switch may reset the cpufreq tunables
+    // behind it, so those are never skipped once the governor changed.
+    private void diff(List<String> paths, List<String> values,
+                      List<String> changedPaths, List<String> changedValues) {
+        String[] current = mNodes.readAll(paths.toArray(new String[paths.size()]));
+        // A node can appear twice, compare against what we last wrote
+        Map<String, String> known = new HashMap<>();
+        for (int i = 0; i < current.length; i++) {
+            if (!known.containsKey(paths.get(i))) {
+                known.put(paths.get(i), current[i]);
+            }
+        }
+        boolean governorChanged = false;
+        for (int i = 0; i < current.length; i++) {
+            String path = paths.get(i);
+            String value = values.get(i);
+            boolean cpufreq = isCpufreq(path);
+            if (value.equals(known.get(path)) && !(cpufreq && governorChanged)) {
+                mSkipped++;
+                continue;
+            }
+            if (path.endsWith("/scaling_governor")) {
+                governorChanged = true;
+            }
+            known.put(path, value);
+            changedPaths.add(path);
+            changedValues.add(value);
+        }
+    }
+
+    // Method that tries the writes of one stage in parallel. They touch
+    // unrelated directories, so the ones that need root can follow in any order.
+    private void writeStage(ExecutorService pool, final List<String> paths,
+                            final List<String> values, int[] stage, ProfileWriter writer) {
+        final int from = stage[0];
+        final int[] results = new int[stage[1] - from];
+        final CountDownLatch done = new CountDownLatch(results.length);
+        for (int i = 0; i < results.length; i++) {
+            final int index = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = mNodes.tryWrite(paths.get(from + index),
+                                values.get(from + index));
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mFailed += results.length;
+            return;
+        }
+        for (int i = 0; i < results.length; i++) {
+            switch (results[i]) {
+                case NodeIO.WRITE_OK:
+                    mWritten++;
+                    break;
+                case NodeIO.WRITE_DENIED:
+                    writer.queue(paths.get(from + i), values.get(from + i));
+                    break;
+                default:
+                    mFailed++;
+                    break;
+            }
+        }
+    }
+
+    // Method that splits writes into stages, returned as {start, end}
+    // index pairs. A write starts a new stage if it is related to one of the
+    // stage's writes, so related writes always land in file order.
+    static List<int[]> stages(List<String> paths) {
+        List<int[]> stages = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= paths.size(); i++) {
+            if (i == paths.size() || relatedToAny(paths, start, i)) {
+                stages.add(new int[]{start, i});
+                start = i;
+            }
+        }
+        return stages;
+    }
+
+    private static boolean relatedToAny(List<String> paths, int start, int index) {
+        for (int i = start; i < index; i++) {
+            if (related(paths.get(i), paths.get(index))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Method that tells whether two writes must keep their order: writes to
+    // the same directory or one below the other (cpu4/online before
+    // cpu4/cpufreq), a governor and any cpufreq node, and cpu hotplug, which
+    // changes what every other node means. cpuN/cpufreq links to the policy
+    // of N's cluster, so cpu0's governor and a cpu1 tunable may well be the
+    // same policy, and a governor switch resets the tunables behind it.
+    static boolean related(String a, String b) {
+        if (a.endsWith("/online") || b.endsWith("/online")) {
+            return true;
+        }
+        String dirA = parent(a);
+        String dirB = parent(b);
+        if (dirA.equals(dirB) || dirA.startsWith(dirB + "/") || dirB.startsWith(dirA + "/")) {
+            return true;
+        }
+        return (isGovernor(a) || isGovernor(b)) && isCpufreq(a) && isCpufreq(b);
+    }
+
+    private static boolean isCpufreq(String path) {
+        return path.contains("/cpufreq/");
+    }
+
+    private static boolean isGovernor(String path) {
+        return path.endsWith("/scaling_governor");
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "";
+    }
+
+    private ExecutorService newPool() {
+        return Executors.newFixedThreadPool(mWorkers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "spectrum-apply");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    int getWritten() {
+        return mWritten;
+    }
+
+    int getSkipped() {
+        return mSkipped;
+    }
+
+    int getFailed() {
+        return mFailed;
+    }
+}
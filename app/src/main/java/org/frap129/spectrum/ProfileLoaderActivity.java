@@ -11,6 +11,7 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.provider.DocumentsContract;
@@ -25,14 +26,7 @@ import android.widget.Button;
 import android.widget.Switch;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-
-import eu.chainfire.libsuperuser.Shell;
-
-import static java.lang.System.in;
+import java.io.File;
 
 public class ProfileLoaderActivity extends AppCompatActivity{
     private static final int SELECT_FILE = 1;
@@ -42,11 +36,13 @@ public class ProfileLoaderActivity extends AppCompatActivity{
         super.onCreate(savedInstanceState);
         setContentView(R.layout.profile_loader);
 
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            ProfileTile.watch(this);
+
         CardView fileSelect = (CardView) findViewById(R.id.profCard);
         final Switch applyOnBoot = (Switch) findViewById(R.id.boot);
         SharedPreferences first = this.getSharedPreferences("firstFind", Context.MODE_PRIVATE);
         SharedPreferences.Editor feditor = first.edit();
-        SharedPreferences boot = getApplication().getSharedPreferences("loadOnBoot", Context.MODE_PRIVATE);
 
         if (first.getBoolean("firstFind", true)) {
             aboutDialog();
@@ -54,7 +50,7 @@ public class ProfileLoaderActivity extends AppCompatActivity{
             feditor.apply();
         }
 
-        applyOnBoot.setChecked(boot.getBoolean("loadOnBoot", false));
+        loadBootSwitch(applyOnBoot);
 
         try {
             if (ContextCompat.checkSelfPermission(ProfileLoaderActivity.this, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED)
@@ -77,48 +73,49 @@ public class ProfileLoaderActivity extends AppCompatActivity{
         applyOnBoot.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                SharedPreferences prefs = getApplication().getSharedPreferences("loadOnBoot", Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = prefs.edit();
-
-                if (applyOnBoot.isChecked()) {
-                    editor.putBoolean("loadOnBoot", true);
-                    editor.apply();
-                } else {
-                    editor.putBoolean("loadOnBoot", false);
-                    editor.apply();
-                }
+                BootConfig.setLoadOnBoot(ProfileLoaderActivity.this, applyOnBoot.isChecked());
             }
         });
     }
 
+    // Method that shows the boot switch once the boot config is read. Moving
+    // the old settings over commits through the preferences provider, so
+    // it's kept off the main thread and the switch waits for it.
+    private void loadBootSwitch(final Switch applyOnBoot) {
+        applyOnBoot.setEnabled(false);
+        final Context appContext = getApplicationContext();
+        new AsyncTask<Object, Object, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Object... params) {
+                return BootConfig.migrate(appContext).getBoolean(BootConfig.KEY_LOAD_ON_BOOT, false);
+            }
+
+            @Override
+            protected void onPostExecute(Boolean loadOnBoot) {
+                applyOnBoot.setChecked(loadOnBoot);
+                applyOnBoot.setEnabled(true);
+            }
+        }.execute();
+    }
+
     // Method that parses profile file
-    public static void setEXKMProfile(final String path) {
+    public static void setEXKMProfile(Context context, final String path) {
+        final File plan = new File(context.getApplicationContext().getFilesDir(), "profile.plan");
         new AsyncTask<Object, Object, Void>() {
             @Override
             protected Void doInBackground(Object... params) {
-                try {
-                    FileInputStream fstream = new FileInputStream(path);
-                    BufferedReader br = new BufferedReader(new InputStreamReader(fstream));
-
-                    String strLine;
-                    String exec = "write() { echo -n $2 > $1; };";
-
-                    while ((strLine = br.readLine()) != null) {
-                        exec = exec + " write " + strLine + ";";
-                    }
-
-                    Shell.SU.run(exec);
-
-                    br.close();
-                    in.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                applyProfile(plan, path);
                 return null;
             }
         }.execute();
     }
 
+    // Method that applies a profile file through its compiled plan, blocks
+    // until done and returns false if the file or any write failed
+    static boolean applyProfile(File plan, String path) {
+        return ProfileApplier.applyFile(NodeIO.get(), RootSession.get(), plan, new File(path));
+    }
+
     // Method that creates intro dialog
     private void aboutDialog() {
         AlertDialog.Builder dialog = new AlertDialog.Builder(this);
@@ -134,7 +131,7 @@ public class ProfileLoaderActivity extends AppCompatActivity{
         new AsyncTask<Object, Object, Void>() {
             @Override
             protected Void doInBackground(Object... params) {
-                Shell.SU.run("setprop persist.spectrum.profile " + profile);
+                RootSession.get().run("setprop persist.spectrum.profile " + profile);
                 return null;
             }
         }.execute();
@@ -156,16 +153,9 @@ public class ProfileLoaderActivity extends AppCompatActivity{
         pDialogConfirm.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                setEXKMProfile(path);
+                setEXKMProfile(ProfileLoaderActivity.this, path);
                 setProp("custom");
-                SharedPreferences prefs = getApplication().getSharedPreferences("profilePath", Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = prefs.edit();
-                SharedPreferences prof = getApplication().getSharedPreferences("profile", Context.MODE_PRIVATE);
-                SharedPreferences.Editor peditor = prof.edit();
-                editor.putString("profilePath", path);
-                editor.apply();
-                peditor.putString("profile", "custom");
-                peditor.apply();
+                BootConfig.setCustomProfile(ProfileLoaderActivity.this, path);
                 pDialog.dismiss();
             }
         });
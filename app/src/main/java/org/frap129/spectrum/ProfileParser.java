@@ -0,0 +1,71 @@
+package org.frap129.spectrum;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+// Streams "path value" lines out of a custom profile without ever holding
+// more than one line of it in memory.
+class ProfileParser {
+
+    interface Sink {
+        void onWrite(String path, String value) throws IOException;
+    }
+
+    // Method that feeds every valid line to sink and returns how many lines
+    // were rejected. Blank lines and lines starting with # are skipped.
+    static int parse(Reader reader, Sink sink) throws IOException {
+        BufferedReader br = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader, 8192);
+        int rejected = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            int length = line.length();
+            int start = skipSpaces(line, 0, length);
+            if (start == length || line.charAt(start) == '#') {
+                continue;
+            }
+            int pathEnd = start;
+            while (pathEnd < length && !isSpace(line.charAt(pathEnd))) {
+                pathEnd++;
+            }
+            int valueStart = skipSpaces(line, pathEnd, length);
+            int valueEnd = length;
+            while (valueEnd > valueStart && isSpace(line.charAt(valueEnd - 1))) {
+                valueEnd--;
+            }
+            if (line.charAt(start) != '/' || valueStart == valueEnd
+                    || !isValidPath(line, start, pathEnd)) {
+                rejected++;
+                continue;
+            }
+            sink.onWrite(line.substring(start, pathEnd), line.substring(valueStart, valueEnd));
+        }
+        return rejected;
+    }
+
+    // Profiles may only point at kernel tunables, never climb out of them
+    private static boolean isValidPath(String line, int start, int end) {
+        if (!line.startsWith("/sys/", start) && !line.startsWith("/proc/", start)
+                && !line.startsWith("/dev/", start)) {
+            return false;
+        }
+        for (int i = start; i < end - 2; i++) {
+            if (line.charAt(i) == '/' && line.charAt(i + 1) == '.' && line.charAt(i + 2) == '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(String line, int from, int length) {
+        while (from < length && isSpace(line.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,56 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+
+import androidx.core.content.ContextCompat;
+
+// Icons, colors and translated text of the profiles, indexed by the ids of
+// the classic four. Ids a kernel adds get the custom icon and the accent
+// color unless the kernel gave its own, and whatever text it published.
+class ProfileResources {
+
+    private static final int[] sIcons = {
+            R.drawable.atom, R.drawable.rocket, R.drawable.battery, R.drawable.game,
+    };
+
+    private static final int[] sColors = {
+            R.color.colorBalance, R.color.colorPerformance, R.color.colorBattery, R.color.colorGaming,
+    };
+
+    private static final int[] sTitles = {
+            R.string.prof0, R.string.prof1, R.string.prof2, R.string.prof3,
+    };
+
+    private static final int[] sDescriptions = {
+            R.string.profdesc0, R.string.profdesc1, R.string.profdesc2, R.string.profdesc3,
+    };
+
+    static int icon(Profiles.Profile profile) {
+        return isClassicId(profile.id) ? sIcons[profile.id] : R.drawable.ic_mono;
+    }
+
+    // Method that returns the translated label of a classic profile, or the
+    // label the kernel's name gave
+    static String label(Context context, Profiles.Profile profile) {
+        return Profiles.isClassic(profile) ? context.getString(sTitles[profile.id]) : profile.label;
+    }
+
+    static int color(Context context, Profiles.Profile profile) {
+        if (profile.argb != 0) {
+            return profile.argb;
+        }
+        return ContextCompat.getColor(context,
+                isClassicId(profile.id) ? sColors[profile.id] : R.color.colorAccent);
+    }
+
+    static String description(Context context, Profiles.Profile profile) {
+        if (!profile.description.isEmpty() || !isClassicId(profile.id)) {
+            return profile.description;
+        }
+        return context.getString(sDescriptions[profile.id]);
+    }
+
+    private static boolean isClassicId(int id) {
+        return id >= 0 && id < sIcons.length;
+    }
+}
@@ -0,0 +1,151 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Applies profile switches one at a time on a dedicated thread. Requests that
+// arrive while a switch is running are coalesced, so only the latest target
+// gets applied once the current switch finishes.
+class ProfileSwitcher {
+
+    interface Callback {
+        void onProfileApplied(int profile, boolean success);
+    }
+
+    private static final String scalingGovernor = "scaling_governor";
+
+    private static ProfileSwitcher sInstance;
+
+    private final NodeIO mNodes;
+    private final RootSession mSession;
+    private final Executor mCallbackExecutor;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "spectrum-switch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Object mLock = new Object();
+    private Request mPending;
+
+    private static class Request {
+        final KernelCapabilities capabilities;
+        final int profile;
+        final Callback callback;
+        final long start = Metrics.start();
+
+        Request(KernelCapabilities capabilities, int profile, Callback callback) {
+            this.capabilities = capabilities;
+            this.profile = profile;
+            this.callback = callback;
+        }
+    }
+
+    ProfileSwitcher(NodeIO nodes, RootSession session, Executor callbackExecutor) {
+        mNodes = nodes;
+        mSession = session;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    // Method that returns the process-wide switcher, callbacks run on the main thread
+    static synchronized ProfileSwitcher get() {
+        if (sInstance == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sInstance = new ProfileSwitcher(NodeIO.get(), RootSession.get(), new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
+        }
+        return sInstance;
+    }
+
+    // Method that interprets a profile and sets it
+    static void setProfile(Context context, int profile) {
+        setProfile(context, profile, null);
+    }
+
+    // Method that interprets a profile and hands it to the switch pipeline
+    static void setProfile(Context context, final int profile, final Callback callback) {
+        KernelCapabilities.request(context, new KernelCapabilities.Callback() {
+            @Override
+            public void onCapabilities(KernelCapabilities capabilities) {
+                // The kernel's own profiles are only known once it's probed
+                int target = Profiles.isProfile(profile) ? profile : Profiles.first();
+                get().switchTo(capabilities, target, callback);
+            }
+        });
+    }
+
+    // Method that queues a switch, replacing any switch that hasn't started yet.
+    // Only the callback of the request that actually gets applied is invoked.
+    void switchTo(KernelCapabilities capabilities, int profile, Callback callback) {
+        boolean schedule;
+        synchronized (mLock) {
+            schedule = mPending == null;
+            mPending = new Request(capabilities, profile, callback);
+        }
+        if (schedule) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            final Request request;
+            synchronized (mLock) {
+                request = mPending;
+                mPending = null;
+            }
+            if (request == null) {
+                return;
+            }
+            final boolean success = apply(request.capabilities, request.profile);
+            Metrics metrics = Metrics.get();
+            metrics.increment(success ? Metrics.SWITCHES : Metrics.SWITCH_FAILURES);
+            metrics.stop(Metrics.SWITCH_LATENCY, request.start);
+            if (request.callback != null) {
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        request.callback.onProfileApplied(request.profile, success);
+                    }
+                });
+            }
+        }
+    };
+
+    // Method that writes a profile and lets KPM retune the governor. The
+    // governor changes go to every cluster, each in a single batch, looking
+    // again for clusters that were offline when the kernel was probed.
+    boolean apply(KernelCapabilities capabilities, int profile) {
+        if (!capabilities.kpm) {
+            RootSession.Result result = mSession.exec(RootSession.DEFAULT_TIMEOUT_MS,
+                    String.format("setprop %s %s", Utils.profileProp, profile));
+            return result != null && result.isSuccess();
+        }
+
+        boolean success = mNodes.write(Utils.kpmPath, String.valueOf(profile));
+        String[] governors = capabilities.topology.current(mNodes).paths(scalingGovernor);
+        if (!capabilities.notTunedGov.isEmpty()) {
+            mNodes.writeAll(governors, capabilities.notTunedGov);
+        }
+        String finalGov = mNodes.read(Utils.kpmFinal);
+        if (finalGov != null && !finalGov.isEmpty()) {
+            mNodes.writeAll(governors, finalGov);
+        }
+        return success;
+    }
+}
@@ -1,6 +1,8 @@
 package org.frap129.spectrum;
 
 import android.annotation.TargetApi;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Icon;
 import android.os.Build;
@@ -9,19 +11,62 @@ import android.service.quicksettings.TileService;
 
 import com.ruesga.preferences.MultiProcessSharedPreferencesProvider;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Set;
 
+// Active tile: the system only binds it when we ask for it, which happens
+// whenever the profile changes. The tile state is worked out then, off the
+// main thread, and kept, so opening the shade just copies it to the tile.
 @TargetApi(Build.VERSION_CODES.N)
 public class ProfileTile extends TileService {
 
-    private static final String SERVICE_STATUS_FLAG = "serviceStatus";
-    private static final String PREFERENCES_KEY = "org.frap129.spectrum";
-    private boolean click = false;
+    // What the tile shows for the current profile, and where a tap goes
+    private static class TileState {
+        final String label;
+        final int icon;
+        final int next;
+
+        TileState(String label, int icon, int next) {
+            this.label = label;
+            this.icon = icon;
+            this.next = next;
+        }
+    }
+
+    private static TileState sState;
+    private static ProfileTile sListening;
+    private static boolean sWatching = false;
+    // A tap that came before the first state, applied once it's known
+    private static boolean sClickPending = false;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        watch(this);
+    }
+
+    @Override
+    public void onTileAdded() {
+        refresh(this, false);
+    }
 
     @Override
     public void onStartListening() {
-        updateTile();
+        sListening = this;
+        TileState state = sState;
+        if (state != null) {
+            showState(state);
+        } else {
+            refresh(this, false);
+        }
+    }
+
+    @Override
+    public void onStopListening() {
+        if (sListening == this) {
+            sListening = null;
+        }
     }
 
     @Override
@@ -29,82 +74,113 @@ public class ProfileTile extends TileService {
         setProfile();
     }
 
-    private void setProfile() {
-        MultiProcessSharedPreferencesProvider.MultiProcessSharedPreferences profile =
-                MultiProcessSharedPreferencesProvider.getSharedPreferences(ProfileTile.this, "profile");
-        SharedPreferences.Editor editor = profile.edit();
-        boolean isActive = getServiceStatus();
-
-        // Update tile and set profile
-        if (isActive && click) {
-            Utils.setProfile(3);
-            editor.putString("profile", "gaming");
-            editor.apply();
-        } else if (!isActive && click) {
-            Utils.setProfile(2);
-            editor.putString("profile", "battery");
-            editor.apply();
-        } else if (isActive && !click){
-            Utils.setProfile(1);
-            editor.putString("profile", "performance");
-            editor.apply();
-        } else {
-            Utils.setProfile(0);
-            editor.putString("profile", "balanced");
-            editor.apply();
+    // Shows the switch and root I/O metrics of this process, run
+    // "dumpsys activity service org.frap129.spectrum/.ProfileTile"
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.get().dump(writer);
+    }
+
+    // Method that keeps the tile state in sync with the profile preference,
+    // call it from anything that may change the profile (on N and later only)
+    static synchronized void watch(Context context) {
+        if (sWatching) {
+            return;
         }
+        sWatching = true;
+        final Context appContext = context.getApplicationContext();
+        ActiveProfile.preferences(appContext).registerOnSharedPreferencesBatchChangeListener(
+                new MultiProcessSharedPreferencesProvider.OnSharedPreferencesBatchChangeListener() {
+                    @Override
+                    public void onSharedPreferencesChanged(SharedPreferences prefs, Set<String> keys) {
+                        if (keys.contains(Profiles.KEY)) {
+                            refresh(appContext, false);
+                        }
+                    }
+                });
+    }
 
-        updateTile();
+    // Method that works out the tile state and pushes it to the tile, waking
+    // the tile up if it isn't listening. The profile is read from the
+    // provider on the capabilities thread, never on the main thread. With
+    // fromKernel the kernel's own profile wins over the saved one and is
+    // saved in turn.
+    private static void refresh(Context context, final boolean fromKernel) {
+        final Context appContext = context.getApplicationContext();
+        KernelCapabilities.request(appContext, new KernelCapabilities.Task<TileState>() {
+            @Override
+            public TileState inBackground(KernelCapabilities capabilities) {
+                int profile = ActiveProfile.get(appContext);
+                if (fromKernel) {
+                    int running = Profiles.parseKernel(WarmUp.readKernelState(capabilities)[0]);
+                    if (running != Profiles.NONE && running != profile) {
+                        ActiveProfile.set(appContext, running);
+                        profile = running;
+                    }
+                }
+                return computeState(profile, Profiles.parseDisabled(capabilities.disabledProfiles));
+            }
+
+            @Override
+            public void onResult(TileState state) {
+                sState = state;
+                if (sClickPending) {
+                    sClickPending = false;
+                    setProfile(appContext, state);
+                    return;
+                }
+                if (sListening != null) {
+                    sListening.showState(state);
+                } else {
+                    TileService.requestListeningState(appContext,
+                            new ComponentName(appContext, ProfileTile.class));
+                }
+            }
+        });
     }
 
-    private boolean getServiceStatus() {
-        SharedPreferences prefs = getApplicationContext().getSharedPreferences(PREFERENCES_KEY, MODE_PRIVATE);
-        boolean isActive = prefs.getBoolean(SERVICE_STATUS_FLAG, false);
-        isActive = !isActive;
+    // Method that moves on to the next profile the kernel offers, or once
+    // the state is known if it isn't yet
+    private void setProfile() {
+        TileState state = sState;
+        if (state == null) {
+            sClickPending = true;
+            refresh(this, false);
+            return;
+        }
+        setProfile(this, state);
+    }
 
-        prefs.edit().putBoolean(SERVICE_STATUS_FLAG, isActive).apply();
+    // Method that switches to the state's next profile and saves it once the
+    // kernel runs it. If the switch fails the tile follows the kernel again.
+    private static void setProfile(final Context context, TileState state) {
+        ProfileSwitcher.setProfile(context, state.next, new ProfileSwitcher.Callback() {
+            @Override
+            public void onProfileApplied(int profile, boolean success) {
+                if (success) {
+                    ActiveProfile.set(context, profile);
+                }
+                // The edit is already visible locally, don't wait for the notification
+                refresh(context, !success);
+            }
+        });
+    }
 
-        return isActive;
+    private static TileState computeState(int profile, long disabled) {
+        Profiles.Profile shown = Profiles.resolve(profile, disabled);
+        return new TileState(shown.label, ProfileResources.icon(shown),
+                Profiles.next(profile, disabled));
     }
 
-    private void updateTile() {
-        String profile = MultiProcessSharedPreferencesProvider
-                .getSharedPreferences(getApplicationContext(), "profile")
-                .getString("profile", "");
+    private void showState(TileState state) {
         Tile tile = this.getQsTile();
-        Icon newIcon;
-        String newLabel;
-        int newState = Tile.STATE_ACTIVE;
-        ArrayList<String> disabledProfilesList = new ArrayList<>();
-        disabledProfilesList.addAll(Arrays.asList(Utils.disabledProfiles().split(",")));
-
-        // Update tile
-        if (profile.contains("gaming") && !disabledProfilesList.contains(profile)) {
-            newLabel = "Gaming";
-            newIcon = Icon.createWithResource(getApplicationContext(), R.drawable.game);
-            click = false;
-        } else if (profile.contains("battery") && !disabledProfilesList.contains(profile)) {
-            newLabel = "Battery";
-            newIcon = Icon.createWithResource(getApplicationContext(), R.drawable.battery);
-            click = true;
-        } else if (profile.contains("performance") && !disabledProfilesList.contains(profile)){
-            newLabel = "Performance";
-            newIcon = Icon.createWithResource(getApplicationContext(), R.drawable.rocket);
-            click = true;
-        } else if (profile.contains("balanced") && !disabledProfilesList.contains(profile)) {
-            newLabel = "Balance";
-            newIcon = Icon.createWithResource(getApplicationContext(), R.drawable.atom);
-            click = false;
-        } else {
-            newLabel = "Custom";
-            newIcon = Icon.createWithResource(getApplicationContext(), R.drawable.ic_mono);
-            click = false;
-        }
+        if (tile == null)
+            return;
 
         // Change the UI of the tile.
-        tile.setLabel(newLabel);
-        tile.setIcon(newIcon);
-        tile.setState(newState);
+        tile.setLabel(state.label);
+        tile.setIcon(Icon.createWithResource(getApplicationContext(), state.icon));
+        tile.setState(Tile.STATE_ACTIVE);
         tile.updateTile();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,107 @@
+package org.frap129.spectrum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Applies parsed profile writes. Nodes we can open ourselves are written
+// directly, the rest are queued into shell batches of bounded size so a
+// large profile never turns into one giant command line. Writes keep the
+// file's order: once a write is queued, the ones after it join the queue
+// instead of overtaking it. Skipping writes already in effect is up to
+// ProfileApplier, which sees the whole profile.
+class ProfileWriter implements ProfileParser.Sink {
+
+    static final int DEFAULT_BATCH_BYTES = 16 * 1024;
+
+    private static final String FAILED = "__spectrum_write_failed__";
+
+    private final NodeIO mNodes;
+    private final RootSession mSession;
+    private final int mMaxBatchBytes;
+    private final List<String> mBatch = new ArrayList<>();
+    private int mBatchBytes = 0;
+
+    private int mWritten = 0;
+    private int mFailed = 0;
+
+    ProfileWriter(NodeIO nodes, RootSession session) {
+        this(nodes, session, DEFAULT_BATCH_BYTES);
+    }
+
+    ProfileWriter(NodeIO nodes, RootSession session, int maxBatchBytes) {
+        mNodes = nodes;
+        mSession = session;
+        mMaxBatchBytes = maxBatchBytes;
+    }
+
+    @Override
+    public void onWrite(String path, String value) {
+        write(path, value);
+    }
+
+    // Method that runs whatever is still queued for the root shell
+    void flush() {
+        flushBatch();
+    }
+
+    private void flushBatch() {
+        if (mBatch.isEmpty()) {
+            return;
+        }
+        String[] commands = mBatch.toArray(new String[mBatch.size()]);
+        RootSession.Result result = mSession.exec(RootSession.DEFAULT_TIMEOUT_MS, commands);
+        if (result != null) {
+            int failed = 0;
+            for (String line : result.output) {
+                if (line.equals(FAILED)) failed++;
+            }
+            mWritten += commands.length - failed;
+            mFailed += failed;
+        } else {
+            mFailed += commands.length;
+        }
+        mBatch.clear();
+        mBatchBytes = 0;
+    }
+
+    private void write(String path, String value) {
+        if (!mBatch.isEmpty()) {
+            queue(path, value);
+            return;
+        }
+        switch (mNodes.tryWrite(path, value)) {
+            case NodeIO.WRITE_OK:
+                mWritten++;
+                break;
+            case NodeIO.WRITE_DENIED:
+                queue(path, value);
+                break;
+            default:
+                mFailed++;
+                break;
+        }
+    }
+
+    // Method that tells whether writes are waiting for the root shell
+    boolean hasQueued() {
+        return !mBatch.isEmpty();
+    }
+
+    // Method that queues a write for the root shell without trying it directly
+    void queue(String path, String value) {
+        String command = mNodes.shellWrite(path, value) + " || echo " + FAILED;
+        if (!mBatch.isEmpty() && mBatchBytes + command.length() > mMaxBatchBytes) {
+            flushBatch();
+        }
+        mBatch.add(command);
+        mBatchBytes += command.length() + 1;
+    }
+
+    int getWritten() {
+        return mWritten;
+    }
+
+    int getFailed() {
+        return mFailed;
+    }
+}
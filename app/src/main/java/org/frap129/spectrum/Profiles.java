@@ -0,0 +1,265 @@
+package org.frap129.spectrum;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Registry of the profiles the app knows about. A profile is identified by
+// the number the kernel uses for it, the profiles a kernel disables are kept
+// as a bit mask over those numbers, and the active profile is persisted as
+// that number, so nothing ever has to scan strings to tell profiles apart.
+// Kernels can publish their own set of profiles, see define(); otherwise the
+// four classic ones are used. This is plain Java, the icons, colors and
+// translated text of the classic profiles live in ProfileResources.
+class Profiles {
+
+    // Nothing applied yet, the kernel reports -1 until the first switch
+    static final int NONE = -1;
+
+    // A custom profile loaded from a file
+    static final int CUSTOM = -2;
+
+    static final int BALANCE = 0;
+    static final int PERFORMANCE = 1;
+    static final int BATTERY = 2;
+    static final int GAMING = 3;
+
+    // Disabled masks are a long, one bit per profile id
+    static final int MAX_PROFILES = 64;
+
+    // Preferences file and key holding the active profile id
+    static final String PREFERENCES = "profile";
+    static final String KEY = "profile";
+
+    static class Profile {
+        final int id;
+        // Name the kernel uses in its disabled list and descriptions file
+        final String name;
+        final String label;
+        // Color the kernel gave, 0 to use the classic color of the id
+        final int argb;
+        // Description the kernel gave, empty to use the classic one of the id
+        final String description;
+
+        Profile(int id, String name, String label) {
+            this(id, name, label, 0, "");
+        }
+
+        Profile(int id, String name, String label, int argb, String description) {
+            this.id = id;
+            this.name = name;
+            this.label = label;
+            this.argb = argb;
+            this.description = description;
+        }
+    }
+
+    static final Profile custom = new Profile(CUSTOM, "custom", "Custom");
+
+    // The profiles every Spectrum kernel had before kernels could define their own
+    private static final Profile[] sBuiltin = {
+            new Profile(BALANCE, "balance", "Balance"),
+            new Profile(PERFORMANCE, "performance", "Performance"),
+            new Profile(BATTERY, "battery", "Battery"),
+            new Profile(GAMING, "gaming", "Gaming"),
+    };
+
+    // Indexed by id, ids the kernel skips are null. Both are swapped as a
+    // whole by define() so readers never see a half built registry.
+    private static volatile Profile[] sProfiles = sBuiltin;
+    private static volatile Map<String, Integer> sNames = names(sBuiltin);
+
+    // Method that replaces the registry with the profiles a kernel publishes,
+    // one "id:name[:#color[:description]]" entry per line or separated by ';'.
+    // Without any valid entry the built in profiles are used.
+    static synchronized void define(String definitions) {
+        Profile[] profiles = parseDefinitions(definitions);
+        sProfiles = profiles.length > 0 ? profiles : sBuiltin;
+        sNames = names(sProfiles);
+    }
+
+    static Profile[] parseDefinitions(String definitions) {
+        if (definitions == null) {
+            return new Profile[0];
+        }
+        Profile[] byId = new Profile[MAX_PROFILES];
+        int count = 0;
+        for (String entry : definitions.split("[\\n;]")) {
+            String[] fields = entry.split(":", 4);
+            int id = parseId(fields[0]);
+            if (fields.length < 2 || id < 0 || id >= MAX_PROFILES) {
+                continue;
+            }
+            String name = fields[1].trim().toLowerCase();
+            if (name.isEmpty()) {
+                continue;
+            }
+            int argb = fields.length > 2 ? parseColor(fields[2]) : 0;
+            String description = fields.length > 3 ? fields[3].trim() : "";
+            byId[id] = new Profile(id, name, label(name), argb, description);
+            count = Math.max(count, id + 1);
+        }
+        Profile[] profiles = new Profile[count];
+        System.arraycopy(byId, 0, profiles, 0, count);
+        return profiles;
+    }
+
+    // Method that returns the number of profile ids, ids are below count()
+    // but a kernel doesn't have to define all of them
+    static int count() {
+        return sProfiles.length;
+    }
+
+    // Method that returns the profile with the given id, null if there is none
+    static Profile get(int id) {
+        if (id == CUSTOM) {
+            return custom;
+        }
+        Profile[] profiles = sProfiles;
+        return id >= 0 && id < profiles.length ? profiles[id] : null;
+    }
+
+    static boolean isProfile(int id) {
+        return id >= 0 && get(id) != null;
+    }
+
+    // Method that tells whether a profile is one of the classic four, under
+    // its classic name
+    static boolean isClassic(Profile profile) {
+        return profile.id >= 0 && profile.id < sBuiltin.length
+                && sBuiltin[profile.id].name.equals(profile.name);
+    }
+
+    // Method that returns the profile to show for the active id, custom if
+    // the kernel doesn't offer it
+    static Profile resolve(int id, long disabled) {
+        Profile profile = get(id);
+        return profile == null || isDisabled(disabled, id) ? custom : profile;
+    }
+
+    // Method that returns the id of a profile name, NONE if it's unknown
+    static int idOf(String name) {
+        Integer id = sNames.get(name.trim().toLowerCase());
+        return id != null ? id : NONE;
+    }
+
+    // Method that turns a comma separated list of profile names or numbers
+    // into a mask, anything it doesn't recognize is ignored
+    static long parseDisabled(String list) {
+        long mask = 0;
+        if (list == null) {
+            return mask;
+        }
+        for (String item : list.split(",")) {
+            int id = parseId(item);
+            if (id == NONE) {
+                id = idOf(item);
+            }
+            if (id >= 0 && id < MAX_PROFILES) {
+                mask |= 1L << id;
+            }
+        }
+        return mask;
+    }
+
+    static boolean isDisabled(long mask, int id) {
+        return id >= 0 && id < MAX_PROFILES && (mask & (1L << id)) != 0;
+    }
+
+    // Method that reads the profile the kernel reports, either a number from
+    // kpm_profile/getprop or "custom". Empty output or -1 means none is set,
+    // anything else the app doesn't know counts as custom.
+    static int parseKernel(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return NONE;
+        }
+        int id = parseId(value);
+        if (id == NONE && !value.trim().equals("-1")) {
+            return CUSTOM;
+        }
+        return id == NONE || isProfile(id) ? id : CUSTOM;
+    }
+
+    // Method that returns the profile after id that isn't disabled, wrapping
+    // around. Starts from the first profile if id isn't a profile.
+    static int next(int id, long disabled) {
+        Profile[] profiles = sProfiles;
+        int count = profiles.length;
+        int start = isProfile(id) ? id : -1;
+        for (int i = 1; i <= count; i++) {
+            int candidate = (start + i + count) % count;
+            if (profiles[candidate] != null && !isDisabled(disabled, candidate)) {
+                return candidate;
+            }
+        }
+        return first();
+    }
+
+    // Method that returns the lowest defined id
+    static int first() {
+        Profile[] profiles = sProfiles;
+        for (int id = 0; id < profiles.length; id++) {
+            if (profiles[id] != null) {
+                return id;
+            }
+        }
+        return BALANCE;
+    }
+
+    // Method that decodes a persisted profile. Ids are stored as an int,
+    // older versions stored names or numbers as a string.
+    static int decode(Object value) {
+        if (value instanceof Integer) {
+            int id = (Integer) value;
+            return isProfile(id) || id == CUSTOM ? id : NONE;
+        } else if (value instanceof String) {
+            String text = (String) value;
+            int id = parseId(text);
+            return isProfile(id) ? id : idOf(text);
+        }
+        return NONE;
+    }
+
+    private static Map<String, Integer> names(Profile[] profiles) {
+        Map<String, Integer> names = new HashMap<>();
+        // Older versions of the app stored this spelling
+        names.put("balanced", BALANCE);
+        for (Profile profile : profiles) {
+            if (profile != null) {
+                names.put(profile.name, profile.id);
+            }
+        }
+        names.put(custom.name, CUSTOM);
+        return names;
+    }
+
+    private static String label(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    // Method that parses #rrggbb or #aarrggbb, 0 if value isn't a color
+    private static int parseColor(String value) {
+        String text = value.trim();
+        if (text.startsWith("#")) {
+            text = text.substring(1);
+        }
+        if (!text.matches("[0-9a-fA-F]{6}|[0-9a-fA-F]{8}")) {
+            return 0;
+        }
+        int argb = (int) Long.parseLong(text, 16);
+        return text.length() == 6 ? argb | 0xff000000 : argb;
+    }
+
+    // Method that parses a plain decimal id, NONE if value isn't one
+    private static int parseId(String value) {
+        String text = value.trim();
+        if (text.isEmpty() || text.length() > 9) {
+            return NONE;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return NONE;
+            }
+        }
+        return Integer.parseInt(text);
+    }
+}
@@ -0,0 +1,310 @@
+package org.frap129.spectrum;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Long-lived shell that every privileged command goes through, so a profile
+// switch costs a pipe write instead of a fresh su fork per call.
+class RootSession {
+
+    static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    private static final String MARKER = "__spectrum_done_";
+
+    // How often a waiter looks again while the worker is between batches
+    private static final long IDLE_POLL_MS = 20;
+
+    private static RootSession sInstance;
+    private static RootSession sShell;
+
+    private final String[] mShell;
+    private ExecutorService mExecutor;
+    private volatile Connection mConnection;
+    private volatile Batch mRunning;
+    private int mCommandId = 0;
+
+    // One shell process and its pipes
+    private static class Connection {
+        final Process process;
+        final Writer stdin;
+        final BufferedReader stdout;
+
+        Connection(Process process) throws IOException {
+            this.process = process;
+            stdin = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        }
+    }
+
+    // A queued command batch. Its timeout runs from the moment the worker
+    // picks it up, so time spent queued behind a slow batch doesn't count.
+    private class Batch extends FutureTask<Result> {
+        final long timeoutMs;
+        private volatile long mStartNanos;
+        private volatile boolean mStarted = false;
+
+        Batch(final String[] commands, long timeoutMs) {
+            super(new Callable<Result>() {
+                @Override
+                public Result call() throws IOException {
+                    return execute(commands);
+                }
+            });
+            this.timeoutMs = timeoutMs;
+        }
+
+        @Override
+        public void run() {
+            mStartNanos = System.nanoTime();
+            mStarted = true;
+            mRunning = this;
+            try {
+                super.run();
+            } finally {
+                finished(this);
+            }
+        }
+
+        // Method that returns how long the batch may still run
+        long remainingMs() {
+            if (!mStarted) {
+                return timeoutMs;
+            }
+            return timeoutMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos);
+        }
+    }
+
+    // Output and exit status of a single queued command batch
+    static class Result {
+        final List<String> output;
+        final int exitCode;
+
+        Result(List<String> output, int exitCode) {
+            this.output = output;
+            this.exitCode = exitCode;
+        }
+
+        boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    RootSession(String... shell) {
+        mShell = shell;
+        mExecutor = newWorker();
+    }
+
+    // Method that returns the process-wide root session
+    static synchronized RootSession get() {
+        if (sInstance == null) {
+            sInstance = new RootSession("su");
+        }
+        return sInstance;
+    }
+
+    // Method that returns the process-wide unprivileged shell, for commands
+    // like getprop that must work, and not prompt, without root
+    static synchronized RootSession shell() {
+        if (sShell == null) {
+            sShell = new RootSession("sh");
+        }
+        return sShell;
+    }
+
+    // Method that runs commands and returns their stdout, or null on failure,
+    // matching what Shell.SU.run used to hand back
+    List<String> run(String... commands) {
+        Result result = exec(DEFAULT_TIMEOUT_MS, commands);
+        return result != null ? result.output : null;
+    }
+
+    // Method that runs commands and waits for them to finish, giving up once
+    // they ran for timeoutMs. While they wait in the queue, whatever batch
+    // runs ahead of them is held to its own timeout instead.
+    Result exec(long timeoutMs, String... commands) {
+        Metrics metrics = Metrics.get();
+        long start = Metrics.start();
+        metrics.increment(Metrics.ROOT_COMMANDS);
+        Batch batch = submit(timeoutMs, commands);
+        try {
+            while (true) {
+                Batch running = mRunning;
+                long wait = running != null ? running.remainingMs() : IDLE_POLL_MS;
+                if (wait <= 0) {
+                    // Ours or one ahead that nobody may be waiting on hung
+                    if (reset(running)) {
+                        metrics.increment(Metrics.ROOT_TIMEOUTS);
+                    }
+                    if (running == batch) {
+                        return null;
+                    }
+                    continue;
+                }
+                try {
+                    return batch.get(wait, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Look again at what the worker is running now
+                }
+            }
+        } catch (CancellationException e) {
+            // Reset by another waiter after it hung, or the session closed
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            metrics.increment(Metrics.ROOT_FAILURES);
+            return null;
+        } finally {
+            metrics.stop(Metrics.ROOT_LATENCY, start);
+        }
+    }
+
+    // Method that queues commands behind any already pending ones
+    Future<Result> submit(String... commands) {
+        return submit(DEFAULT_TIMEOUT_MS, commands);
+    }
+
+    private synchronized Batch submit(long timeoutMs, String[] commands) {
+        Batch batch = new Batch(commands, timeoutMs);
+        mExecutor.execute(batch);
+        return batch;
+    }
+
+    // Method that runs one batch on the worker thread, reconnecting if the
+    // shell died. Test doubles override it to add latency or fail on purpose.
+    Result execute(String[] commands) throws IOException {
+        Connection connection = connect();
+        try {
+            return communicate(connection, commands);
+        } catch (IOException e) {
+            disconnect(connection);
+            throw e;
+        }
+    }
+
+    // Method to check if the session actually runs as root
+    boolean available() {
+        List<String> result = run("id");
+        return result != null && Utils.listToString(result).contains("uid=0");
+    }
+
+    synchronized void close() {
+        cancel(mExecutor.shutdownNow());
+        if (mRunning != null) {
+            mRunning.cancel(true);
+        }
+        disconnect(mConnection);
+    }
+
+    private Result communicate(Connection connection, String[] commands) throws IOException {
+        String marker = MARKER + (++mCommandId) + "__";
+        for (String command : commands) {
+            connection.stdin.write(command);
+            connection.stdin.write('\n');
+        }
+        connection.stdin.write("echo " + marker + " $?\n");
+        connection.stdin.flush();
+
+        List<String> output = new ArrayList<>();
+        String line;
+        while ((line = connection.stdout.readLine()) != null) {
+            int end = line.indexOf(marker);
+            if (end < 0) {
+                output.add(line);
+                continue;
+            }
+            // Output that did not end with a newline shares the marker line
+            if (end > 0) {
+                output.add(line.substring(0, end));
+            }
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(line.substring(end + marker.length()).trim());
+            } catch (NumberFormatException e) {
+                exitCode = -1;
+            }
+            return new Result(output, exitCode);
+        }
+        throw new IOException("Shell exited while running command");
+    }
+
+    private Connection connect() throws IOException {
+        Connection connection = mConnection;
+        if (connection == null) {
+            connection = new Connection(new ProcessBuilder(mShell).start());
+            // Nobody drains stderr, so keep the shell from ever blocking on it
+            connection.stdin.write("exec 2>/dev/null\n");
+            connection.stdin.flush();
+            mConnection = connection;
+        }
+        return connection;
+    }
+
+    private synchronized void disconnect(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        if (mConnection == connection) {
+            mConnection = null;
+        }
+        connection.process.destroy();
+    }
+
+    // Method that abandons a worker stuck on a hung batch. A child of the
+    // shell can keep the pipe open after the shell dies, so the stuck thread
+    // is left to drain on its own while queued commands move to a new worker.
+    // Returns false if another waiter already did it.
+    private synchronized boolean reset(Batch hung) {
+        if (hung == null || mRunning != hung) {
+            return false;
+        }
+        mRunning = null;
+        hung.cancel(true);
+        disconnect(mConnection);
+        List<Runnable> pending = mExecutor.shutdownNow();
+        mExecutor = newWorker();
+        for (Runnable task : pending) {
+            mExecutor.execute(task);
+        }
+        return true;
+    }
+
+    private synchronized void finished(Batch batch) {
+        if (mRunning == batch) {
+            mRunning = null;
+        }
+    }
+
+    private static void cancel(List<Runnable> pending) {
+        for (Runnable task : pending) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+    private static ExecutorService newWorker() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "spectrum-root");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -3,21 +3,25 @@ package org.frap129.spectrum;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
 
 public class SplashActivity extends Activity{
 
+    // Longest the splash stays up when the kernel is slow to answer, the
+    // main screen keeps waiting on whatever is left
+    private static final long WARM_UP_TIMEOUT_MS = 1500;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        final Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+        WarmUp.start(this).whenReady(WARM_UP_TIMEOUT_MS, new Runnable() {
             @Override
             public void run() {
+                if (isFinishing())
+                    return;
                 Intent intent = new Intent(SplashActivity.this, MainActivity.class);
                 startActivity(intent);
                 finish();
             }
-        }, 700);
+        });
     }
 }
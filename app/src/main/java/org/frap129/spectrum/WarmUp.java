@@ -0,0 +1,194 @@
+package org.frap129.spectrum;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Everything the main screen needs before it can show the cards, read in
+// parallel. The splash starts it and moves on as soon as it's done, the
+// main screen then takes the same reads over instead of issuing its own.
+// The user's descriptions live on external storage, which may be slow to
+// mount, so the cards never wait for them.
+class WarmUp {
+
+    interface Callback {
+        void onReady(Result result);
+
+        // Called after onReady, once the user's descriptions are read
+        void onDescriptions(Map<String, String> descriptions);
+    }
+
+    static class Result {
+        final KernelCapabilities capabilities;
+        // Profile the kernel reports, as read from kpm_profile or getprop
+        final String profile;
+        // Kernel name for the descriptions, null if the kernel has none
+        final String kernel;
+
+        Result(KernelCapabilities capabilities, String profile, String kernel) {
+            this.capabilities = capabilities;
+            this.profile = profile;
+            this.kernel = kernel;
+        }
+    }
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "spectrum-warmup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Started by the splash and not taken by the main screen yet
+    private static WarmUp sPending;
+
+    // Keeps the parsed descriptions for the life of the process
+    private static CustomDescriptions sDescriptions;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Future<KernelCapabilities> mCapabilities;
+    private final Future<String[]> mKernelState;
+    private final Future<Map<String, String>> mDescriptions;
+
+    private WarmUp(final Context context) {
+        mCapabilities = KernelCapabilities.probe(context);
+        mKernelState = sExecutor.submit(new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return readKernelState(KernelCapabilities.await(context));
+            }
+        });
+        final CustomDescriptions descriptions = descriptions(context);
+        mDescriptions = sExecutor.submit(new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() {
+                return descriptions.load();
+            }
+        });
+    }
+
+    // Method that starts warming up for the main screen
+    static synchronized WarmUp start(Context context) {
+        sPending = new WarmUp(context.getApplicationContext());
+        return sPending;
+    }
+
+    // Method that hands over the warm-up the splash started, or starts one
+    // if the main screen was opened some other way
+    static synchronized WarmUp take(Context context) {
+        WarmUp warmUp = sPending;
+        sPending = null;
+        return warmUp != null ? warmUp : new WarmUp(context.getApplicationContext());
+    }
+
+    // Method that runs onReady on the main thread once the cards can be
+    // built, or once timeoutMs passed, whichever comes first
+    void whenReady(final long timeoutMs, final Runnable onReady) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                for (Future<?> future : new Future<?>[]{mCapabilities, mKernelState}) {
+                    try {
+                        future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        // Reported by request(), only waiting here
+                    } catch (TimeoutException e) {
+                        break;
+                    }
+                }
+                mHandler.post(onReady);
+            }
+        });
+    }
+
+    // Method that hands the results to callback on the main thread, the
+    // descriptions separately as soon as they're in
+    void request(final Callback callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                KernelCapabilities capabilities = get(mCapabilities);
+                if (capabilities == null) {
+                    capabilities = new KernelCapabilities(false, false, false, "", "", "");
+                }
+                String[] state = get(mKernelState);
+                final Result result = new Result(capabilities,
+                        state != null ? state[0] : null, state != null ? state[1] : null);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onReady(result);
+                    }
+                });
+
+                Map<String, String> loaded = get(mDescriptions);
+                final Map<String, String> descriptions =
+                        loaded != null ? loaded : Collections.<String, String>emptyMap();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onDescriptions(descriptions);
+                    }
+                });
+            }
+        });
+    }
+
+    private static synchronized CustomDescriptions descriptions(Context context) {
+        if (sDescriptions == null) {
+            sDescriptions = new CustomDescriptions(
+                    new File(Environment.getExternalStorageDirectory(), CustomDescriptions.FILE_NAME),
+                    new File(context.getFilesDir(), CustomDescriptions.CACHE_FILE_NAME));
+        }
+        return sDescriptions;
+    }
+
+    // Method that reads the current profile and the kernel name in one go
+    static String[] readKernelState(KernelCapabilities capabilities) {
+        if (!capabilities.supported || !capabilities.root) {
+            return new String[2];
+        }
+        if (capabilities.kpm) {
+            return NodeIO.get().readAll(new String[]{Utils.kpmPath, Utils.kpmPropPath});
+        }
+        RootSession session = RootSession.get();
+        return new String[]{getprop(session, Utils.profileProp), getprop(session, Utils.kernelProp)};
+    }
+
+    private static String getprop(RootSession session, String prop) {
+        List<String> result = session.run("getprop " + prop);
+        return result != null ? Utils.listToString(result) : null;
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
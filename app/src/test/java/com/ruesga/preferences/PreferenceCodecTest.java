@@ -0,0 +1,67 @@
+package com.ruesga.preferences;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Round-trips preference values through the provider wire format.
+ */
+public class PreferenceCodecTest {
+
+    private static Object roundTrip(Object value) {
+        return PreferenceCodec.decode(PreferenceCodec.encode(value));
+    }
+
+    @Test
+    public void roundTripsEveryType() {
+        assertEquals("performance", roundTrip("performance"));
+        assertEquals("", roundTrip(""));
+        assertEquals(Integer.MIN_VALUE, roundTrip(Integer.MIN_VALUE));
+        assertEquals(Long.MAX_VALUE, roundTrip(Long.MAX_VALUE));
+        assertEquals(-0.5f, roundTrip(-0.5f));
+        assertEquals(true, roundTrip(true));
+        assertEquals(false, roundTrip(false));
+
+        Set<String> set = new HashSet<>(Arrays.asList("a", "\u00fcml\u00e4ut", "", null));
+        assertEquals(set, roundTrip(set));
+        assertEquals(new HashSet<String>(), roundTrip(new HashSet<String>()));
+    }
+
+    @Test
+    public void keepsStringsThatLookLikeOtherTypes() {
+        assertEquals("true", roundTrip("true"));
+        assertEquals("[\"a\",\"b\"]", roundTrip("[\"a\",\"b\"]"));
+        assertEquals("1", roundTrip("1"));
+    }
+
+    @Test
+    public void rejectsMalformedData() {
+        assertNull(PreferenceCodec.decode(null));
+        assertNull(PreferenceCodec.decode(new byte[0]));
+        assertNull(PreferenceCodec.decode(new byte[]{42}));
+
+        byte[] string = PreferenceCodec.encode("profile");
+        assertNull(PreferenceCodec.decode(Arrays.copyOf(string, string.length - 1)));
+        assertNull(PreferenceCodec.decode(Arrays.copyOf(string, string.length + 1)));
+
+        // A set claiming far more elements than the buffer could hold
+        assertNull(PreferenceCodec.decode(new byte[]{PreferenceCodec.TYPE_SET, 0x7f, 0, 0, 0}));
+        // A string with a negative length
+        assertNull(PreferenceCodec.decode(new byte[]{PreferenceCodec.TYPE_STRING, -1, -1, -1, -2}));
+    }
+
+    @Test
+    public void tagsValuesWithTheirType() {
+        assertEquals(PreferenceCodec.TYPE_INT, PreferenceCodec.encode(1)[0]);
+        assertEquals(PreferenceCodec.TYPE_LONG, PreferenceCodec.encode(1L)[0]);
+        assertArrayEquals(new byte[]{PreferenceCodec.TYPE_BOOLEAN, 1},
+                PreferenceCodec.encode(true));
+    }
+}
@@ -0,0 +1,171 @@
+package org.frap129.spectrum;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when the boot receiver applies the custom profile.
+ */
+public class BootConfigTest {
+
+    @Test
+    public void shouldApply_afterLoadingCustomProfile() {
+        SharedPreferences prefs = new MemoryPreferences();
+        BootConfig.setCustomProfile(prefs, "/sdcard/profile.txt");
+        assertTrue(BootConfig.read(prefs).shouldApply());
+    }
+
+    @Test
+    public void shouldApply_notAfterPickingBuiltinProfile() {
+        SharedPreferences prefs = new MemoryPreferences();
+        BootConfig.setCustomProfile(prefs, "/sdcard/profile.txt");
+        prefs.edit().putInt(Profiles.KEY, 1).apply();
+        assertFalse(BootConfig.read(prefs).shouldApply());
+
+        BootConfig.setCustomProfile(prefs, "/sdcard/profile.txt");
+        prefs.edit().putBoolean(BootConfig.KEY_LOAD_ON_BOOT, false).apply();
+        assertFalse(BootConfig.read(prefs).shouldApply());
+    }
+
+    // Preferences kept in a map, edits land as soon as they're applied
+    private static class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        private class MemoryEditor implements Editor {
+
+            private final Map<String, Object> mEdits = new HashMap<>();
+            private boolean mClear = false;
+
+            private Editor put(String key, Object value) {
+                mEdits.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, String value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                return put(key, values);
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                return put(key, null);
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (mClear) {
+                    mValues.clear();
+                }
+                for (Map.Entry<String, Object> edit : mEdits.entrySet()) {
+                    if (edit.getValue() == null) {
+                        mValues.remove(edit.getKey());
+                    } else {
+                        mValues.put(edit.getKey(), edit.getValue());
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
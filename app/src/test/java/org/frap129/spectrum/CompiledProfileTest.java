@@ -0,0 +1,121 @@
+package org.frap129.spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trips custom profiles through the binary plan format.
+ */
+public class CompiledProfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FakeRoot.write(file, contents);
+        return file;
+    }
+
+    private static List<String> writes(CompiledProfile profile) throws IOException {
+        final List<String> writes = new ArrayList<>();
+        profile.execute(new ProfileParser.Sink() {
+            @Override
+            public void onWrite(String path, String value) {
+                writes.add(path + "=" + value);
+            }
+        });
+        return writes;
+    }
+
+    @Test
+    public void save_survivesConcurrentSaves() throws Exception {
+        final File source = write("profile", "/sys/kernel/a 1\n/sys/kernel/b 2\n");
+        final File plan = new File(folder.getRoot(), "profile.plan");
+        final CompiledProfile profile = CompiledProfile.compile(source);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> saves = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                saves.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        profile.save(plan);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> save : saves) {
+                save.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(writes(profile), writes(CompiledProfile.load(plan, CompiledProfile.hash(source))));
+        for (String name : folder.getRoot().list()) {
+            assertTrue(name, !name.endsWith(".tmp"));
+        }
+    }
+
+    @Test
+    public void compile_keepsSourceOrder() throws Exception {
+        File source = write("profile", "/sys/devices/system/cpu/cpu4/core_ctl/enable 0\n"
+                + "/sys/block/sda/queue/scheduler cfq\n"
+                + "/sys/devices/system/cpu/cpu4/online 1\n"
+                + "/sys/devices/system/cpu/cpu4/core_ctl/enable 1\n");
+        File plan = new File(folder.getRoot(), "profile.plan");
+        List<String> expected = Arrays.asList(
+                "/sys/devices/system/cpu/cpu4/core_ctl/enable=0",
+                "/sys/block/sda/queue/scheduler=cfq",
+                "/sys/devices/system/cpu/cpu4/online=1",
+                "/sys/devices/system/cpu/cpu4/core_ctl/enable=1");
+        assertEquals(expected, writes(CompiledProfile.compile(source)));
+        CompiledProfile.loadOrCompile(plan, source);
+        assertEquals(expected, writes(CompiledProfile.load(plan, CompiledProfile.hash(source))));
+    }
+
+    @Test
+    public void save_keepsValuesPast64k() throws Exception {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 70000) {
+            value.append("0123456789abcdef");
+        }
+        File source = write("profile", "/sys/kernel/big " + value + "\n");
+        File plan = new File(folder.getRoot(), "profile.plan");
+        CompiledProfile.loadOrCompile(plan, source);
+        assertEquals(Arrays.asList("/sys/kernel/big=" + value),
+                writes(CompiledProfile.load(plan, CompiledProfile.hash(source))));
+    }
+
+    @Test
+    public void loadOrCompile_reusesPlanUntilSourceChanges() throws Exception {
+        File source = write("profile", "/sys/kernel/a 1\n/sys/kernel/b 1\n");
+        File plan = new File(folder.getRoot(), "profile.plan");
+        CompiledProfile.loadOrCompile(plan, source);
+
+        CompiledProfile saved = CompiledProfile.load(plan, CompiledProfile.hash(source));
+        assertNotNull(saved);
+        assertEquals(Arrays.asList("/sys/kernel/a=1", "/sys/kernel/b=1"), writes(saved));
+
+        write("profile", "/sys/kernel/a 0\n");
+        assertNull(CompiledProfile.load(plan, CompiledProfile.hash(source)));
+        assertEquals(Arrays.asList("/sys/kernel/a=0"),
+                writes(CompiledProfile.loadOrCompile(plan, source)));
+    }
+}
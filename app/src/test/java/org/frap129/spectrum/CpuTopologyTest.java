@@ -0,0 +1,122 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Discovers clusters from fake cpufreq trees.
+ */
+public class CpuTopologyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRoot fake;
+
+    @Before
+    public void setUp() {
+        fake = new FakeRoot(folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    @Test
+    public void discover_listsPoliciesInOrder() throws IOException {
+        for (int policy : new int[]{0, 4, 7}) {
+            fake.node("/sys/devices/system/cpu/cpufreq/policy" + policy + "/scaling_governor",
+                    "schedutil\n");
+        }
+        fake.node("/sys/devices/system/cpu/cpufreq/schedutil/rate_limit_us", "500\n");
+
+        CpuTopology topology = CpuTopology.discover(fake.nodes);
+        assertArrayEquals(new String[]{
+                "/sys/devices/system/cpu/cpufreq/policy0/scaling_governor",
+                "/sys/devices/system/cpu/cpufreq/policy4/scaling_governor",
+                "/sys/devices/system/cpu/cpufreq/policy7/scaling_governor",
+        }, topology.paths("scaling_governor"));
+    }
+
+    @Test
+    public void discover_groupsCpusByRelatedCpus() throws IOException {
+        for (int cpu = 0; cpu < 8; cpu++) {
+            fake.node("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/related_cpus",
+                    cpu < 4 ? "0 1 2 3\n" : "4 5 6 7\n");
+        }
+        // Only readable through the shell, still a single batch
+        fake.deny("/sys/devices/system/cpu/cpu4/cpufreq/related_cpus");
+        fake.deny("/sys/devices/system/cpu/cpu5/cpufreq/related_cpus");
+        fake.node("/sys/devices/system/cpu/possible", "0-7\n");
+
+        CpuTopology topology = CpuTopology.discover(fake.nodes);
+        assertArrayEquals(new String[]{
+                "/sys/devices/system/cpu/cpu0/cpufreq",
+                "/sys/devices/system/cpu/cpu4/cpufreq",
+        }, topology.policies);
+        assertTrue(topology.complete);
+        assertEquals(1, fake.commands());
+    }
+
+    @Test
+    public void discover_notesOfflineClusters() throws IOException {
+        // The big cluster is offline, old kernels drop its cpufreq directories
+        for (int cpu = 0; cpu < 8; cpu++) {
+            fake.node("/sys/devices/system/cpu/cpu" + cpu + "/online", cpu < 4 ? "1\n" : "0\n");
+        }
+        for (int cpu = 0; cpu < 4; cpu++) {
+            fake.node("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/related_cpus", "0 1 2 3\n");
+        }
+        fake.node("/sys/devices/system/cpu/possible", "0-7\n");
+
+        CpuTopology topology = CpuTopology.discover(fake.nodes);
+        assertArrayEquals(new String[]{"/sys/devices/system/cpu/cpu0/cpufreq"},
+                topology.policies);
+        assertFalse(topology.complete);
+
+        // Once it's back online the next switch sees it
+        for (int cpu = 4; cpu < 8; cpu++) {
+            fake.node("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/related_cpus", "4 5 6 7\n");
+        }
+        CpuTopology current = topology.current(fake.nodes);
+        assertArrayEquals(new String[]{
+                "/sys/devices/system/cpu/cpu0/cpufreq",
+                "/sys/devices/system/cpu/cpu4/cpufreq",
+        }, current.policies);
+        assertTrue(current.complete);
+        assertSame(current, current.current(fake.nodes));
+    }
+
+    @Test
+    public void cpus_parsesRangesAndLists() {
+        assertEquals("{0, 1, 2, 3, 6}", CpuTopology.cpus("0-3,6\n").toString());
+        assertEquals("{4, 5, 6, 7}", CpuTopology.cpus("4 5 6 7").toString());
+        assertTrue(CpuTopology.cpus(null).isEmpty());
+    }
+
+    @Test
+    public void discover_fallsBackToCpu0() {
+        assertSame(CpuTopology.DEFAULT, CpuTopology.discover(fake.nodes));
+        assertEquals(Utils.cpuScalingGovernorPath,
+                CpuTopology.DEFAULT.paths("scaling_governor")[0]);
+    }
+
+    @Test
+    public void encode_roundTrips() {
+        CpuTopology topology = new CpuTopology(new String[]{"/a/policy0", "/a/policy4"});
+        assertArrayEquals(topology.policies, CpuTopology.decode(topology.encode()).policies);
+        assertSame(CpuTopology.DEFAULT, CpuTopology.decode(null));
+    }
+}
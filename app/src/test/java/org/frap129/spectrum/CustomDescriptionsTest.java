@@ -0,0 +1,57 @@
+package org.frap129.spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses a descriptions file and checks it's only reread when it changes.
+ */
+public class CustomDescriptionsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void write(File file, String contents, long modified) throws IOException {
+        FakeRoot.write(file, contents);
+        assertTrue(file.setLastModified(modified));
+    }
+
+    @Test
+    public void parse_keysByProfileName() throws Exception {
+        Map<String, String> descriptions = CustomDescriptions.parse(new StringReader(
+                "Balance: Daily driver\ngaming:Fast: really fast\nno colon here\n"
+                        + "balance:second\n:orphan\n"));
+        assertEquals("Daily driver", descriptions.get("balance"));
+        assertEquals("Fast: really fast", descriptions.get("gaming"));
+        assertEquals(2, descriptions.size());
+    }
+
+    @Test
+    public void load_reparsesOnlyWhenFileChanges() throws Exception {
+        File source = folder.newFile("spectrum_descriptions");
+        File cache = new File(folder.getRoot(), "descriptions");
+        write(source, "battery:one\n", 1000000L);
+        assertEquals("one", new CustomDescriptions(source, cache).load().get("battery"));
+
+        // Same size and mtime, a fresh loader must come from the disk cache
+        write(source, "battery:two\n", 1000000L);
+        CustomDescriptions loader = new CustomDescriptions(source, cache);
+        assertEquals("one", loader.load().get("battery"));
+
+        write(source, "battery:three\n", 2000000L);
+        assertEquals("three", loader.load().get("battery"));
+
+        assertTrue(source.delete());
+        assertNull(loader.load().get("battery"));
+    }
+}
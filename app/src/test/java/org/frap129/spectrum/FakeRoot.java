@@ -0,0 +1,185 @@
+package org.frap129.spectrum;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A kernel tree in a temp directory with a plain sh standing in for su, so
+ * the switch and apply paths run on a desktop JVM. Direct node access and
+ * shell batches can be slowed down or made to fail on purpose; injected
+ * latency is a fixed sleep, so runs stay comparable.
+ */
+class FakeRoot {
+
+    final File root;
+    final RootSession session;
+    final NodeIO nodes;
+
+    // Latency added to every shell batch and every direct node access
+    volatile long commandLatencyMicros = 0;
+    volatile long readLatencyMicros = 0;
+    volatile long writeLatencyMicros = 0;
+
+    // Nodes only the shell may touch, like the ones SELinux keeps from apps
+    private final Set<String> mDenied = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    // Nodes every write to fails, directly or through the shell
+    private final Set<String> mBroken = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    // Upcoming shell batches that die as if su went away
+    private final AtomicInteger mFailingCommands = new AtomicInteger();
+    private final AtomicInteger mCommands = new AtomicInteger();
+    // Nodes in the order writes reached them, directly or through the shell
+    private final List<String> mWrites = Collections.synchronizedList(new ArrayList<String>());
+
+    private static final Pattern sShellWrite = Pattern.compile("> '([^']*)'");
+
+    FakeRoot(File root) {
+        this.root = root;
+        session = new Session();
+        nodes = new Nodes();
+    }
+
+    void close() {
+        session.close();
+    }
+
+    // Method that creates a node with the given contents
+    void node(String path, String contents) throws IOException {
+        write(nodes.resolve(path), contents);
+    }
+
+    // Method that creates a file with the given contents, parents included
+    static void write(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    void deny(String path) {
+        mDenied.add(nodes.resolve(path).getPath());
+    }
+
+    void breakWrites(String path) {
+        mBroken.add(nodes.resolve(path).getPath());
+    }
+
+    void failNextCommands(int count) {
+        mFailingCommands.set(count);
+    }
+
+    // Method that returns how many shell batches ran, failed ones included
+    int commands() {
+        return mCommands.get();
+    }
+
+    // Method that returns the nodes written so far, in the order they were
+    List<String> writes() {
+        synchronized (mWrites) {
+            return new ArrayList<>(mWrites);
+        }
+    }
+
+    private void logWrite(String path) {
+        mWrites.add(path.substring(root.getPath().length()));
+    }
+
+    private boolean takeFailure() {
+        int left;
+        do {
+            left = mFailingCommands.get();
+            if (left <= 0) {
+                return false;
+            }
+        } while (!mFailingCommands.compareAndSet(left, left - 1));
+        return true;
+    }
+
+    private static void sleep(long micros) {
+        if (micros <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Session extends RootSession {
+
+        Session() {
+            super("/bin/sh");
+        }
+
+        @Override
+        Result execute(String[] commands) throws IOException {
+            mCommands.incrementAndGet();
+            sleep(commandLatencyMicros);
+            if (takeFailure()) {
+                throw new IOException("Shell exited while running command");
+            }
+            if (!mBroken.isEmpty()) {
+                commands = commands.clone();
+                for (int i = 0; i < commands.length; i++) {
+                    for (String broken : mBroken) {
+                        // A trailing slash makes the redirect itself fail, like a node
+                        // rejecting the value would
+                        commands[i] = commands[i].replace("> " + NodeIO.quote(broken),
+                                "> " + NodeIO.quote(broken + "/"));
+                    }
+                }
+            }
+            for (String command : commands) {
+                Matcher write = sShellWrite.matcher(command);
+                if (write.find()) {
+                    logWrite(write.group(1));
+                }
+            }
+            return super.execute(commands);
+        }
+    }
+
+    private class Nodes extends NodeIO {
+
+        Nodes() {
+            super(root, session);
+        }
+
+        @Override
+        String readDirect(File node) throws IOException {
+            sleep(readLatencyMicros);
+            if (mDenied.contains(node.getPath())) {
+                throw new IOException(node.getPath() + ": open failed: EACCES (Permission denied)");
+            }
+            return super.readDirect(node);
+        }
+
+        @Override
+        void writeDirect(File node, String value) throws IOException {
+            sleep(writeLatencyMicros);
+            if (mDenied.contains(node.getPath())) {
+                throw new IOException(node.getPath() + ": open failed: EACCES (Permission denied)");
+            }
+            if (mBroken.contains(node.getPath())) {
+                throw new IOException(node.getPath() + ": write failed: EINVAL (Invalid argument)");
+            }
+            super.writeDirect(node, value);
+            logWrite(node.getPath());
+        }
+    }
+}
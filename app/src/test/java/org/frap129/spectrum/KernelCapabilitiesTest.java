@@ -0,0 +1,136 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Probes a fake KPM kernel through a /bin/sh stand-in, where getprop is missing.
+ */
+public class KernelCapabilitiesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRoot fake;
+    private RootSession session;
+    private NodeIO nodes;
+
+    @Before
+    public void setUp() {
+        fake = new FakeRoot(folder.getRoot());
+        session = fake.session;
+        nodes = fake.nodes;
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    @Test
+    public void load_readsKpmNodes() throws Exception {
+        fake.node(Utils.kpmSupport, "1\n");
+        fake.node(Utils.kpmDisabledProfilesPath, "gaming\n");
+        fake.node(Utils.kpmNotTuned, "performance\n");
+        fake.node(Utils.kpmProfilesPath, "0:balance\n4:thermal:#ff7043\n");
+
+        KernelCapabilities caps = KernelCapabilities.load(nodes, session, session);
+        assertTrue(caps.supported);
+        assertTrue(caps.kpm);
+        assertEquals("gaming", caps.disabledProfiles);
+        assertEquals("performance", caps.notTunedGov);
+        assertEquals("0:balance\n4:thermal:#ff7043", caps.profiles);
+    }
+
+    @Test
+    public void load_reusesCacheWithinBoot() throws Exception {
+        File cache = new File(folder.getRoot(), "capabilities");
+        // Only probes that had root are cached, so make the stand-in look like su
+        session.run("id() { echo uid=0; }");
+        fake.node("/proc/sys/kernel/random/boot_id", "boot-a\n");
+        fake.node("/proc/version", "Linux version 4.9\n");
+        fake.node(Utils.kpmSupport, "1\n");
+        KernelCapabilities.load(cache, nodes, session, session);
+
+        // A cache hit must not look at the KPM nodes again
+        new File(folder.getRoot(), Utils.kpmSupport).delete();
+        assertTrue(KernelCapabilities.load(cache, nodes, session, session).supported);
+
+        fake.node("/proc/sys/kernel/random/boot_id", "boot-b\n");
+        assertFalse(KernelCapabilities.load(cache, nodes, session, session).supported);
+    }
+
+    @Test
+    public void load_readsPropsWithoutRoot() throws Exception {
+        // su is denied, getprop in the plain shell still sees the props kernel
+        RootSession denied = new RootSession(new File(folder.getRoot(), "su").getPath());
+        session.run("getprop() { echo '[spectrum.support]: [1]'; }");
+        try {
+            KernelCapabilities caps = KernelCapabilities.load(
+                    new NodeIO(folder.getRoot(), denied), session, denied);
+            assertTrue(caps.supported);
+            assertFalse(caps.kpm);
+            assertFalse(caps.root);
+            // Probed again once su may have been granted
+            assertFalse(caps.isFinal());
+        } finally {
+            denied.close();
+        }
+    }
+
+    @Test
+    public void load_reportsMissingSupport() throws Exception {
+        KernelCapabilities caps = KernelCapabilities.load(nodes, session, session);
+        assertFalse(caps.supported);
+        assertEquals("", caps.disabledProfiles);
+        assertEquals("", caps.profiles);
+    }
+
+    @Test
+    public void load_cachesTopology() throws Exception {
+        File cache = new File(folder.getRoot(), "capabilities");
+        session.run("id() { echo uid=0; }");
+        fake.node("/proc/sys/kernel/random/boot_id", "boot-a\n");
+        fake.node("/proc/version", "Linux version 4.9\n");
+        fake.node(Utils.kpmSupport, "1\n");
+        fake.node("/sys/devices/system/cpu/cpufreq/policy0/scaling_governor", "schedutil\n");
+        fake.node("/sys/devices/system/cpu/cpufreq/policy4/scaling_governor", "schedutil\n");
+        assertEquals(2, KernelCapabilities.load(cache, nodes, session, session).topology.policies.length);
+
+        // Within a boot the topology comes from the cache
+        delete(new File(folder.getRoot(), "sys"));
+        assertEquals(2, KernelCapabilities.load(cache, nodes, session, session).topology.policies.length);
+    }
+
+    @Test
+    public void load_skipsCacheWithOfflineCluster() throws Exception {
+        File cache = new File(folder.getRoot(), "capabilities");
+        session.run("id() { echo uid=0; }");
+        fake.node("/proc/sys/kernel/random/boot_id", "boot-a\n");
+        fake.node("/proc/version", "Linux version 3.18\n");
+        fake.node("/sys/devices/system/cpu/possible", "0-7\n");
+        fake.node("/sys/devices/system/cpu/cpu0/cpufreq/related_cpus", "0 1 2 3\n");
+        KernelCapabilities caps = KernelCapabilities.load(cache, nodes, session, session);
+        assertFalse(caps.topology.complete);
+        assertFalse(cache.exists());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
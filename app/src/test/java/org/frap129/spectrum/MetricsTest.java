@@ -0,0 +1,56 @@
+package org.frap129.spectrum;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks bucketing, percentiles and the dump format of the metrics registry.
+ */
+public class MetricsTest {
+
+    @Test
+    public void bucketsByUpperBound() {
+        assertEquals(0, Metrics.bucketOf(0));
+        assertEquals(0, Metrics.bucketOf(100));
+        assertEquals(1, Metrics.bucketOf(101));
+        assertEquals(Metrics.BUCKETS - 1, Metrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void recordsLatencies() {
+        Metrics metrics = new Metrics();
+        for (int i = 0; i < 98; i++) {
+            metrics.record(Metrics.ROOT_LATENCY, 800);
+        }
+        metrics.record(Metrics.ROOT_LATENCY, 40000);
+        metrics.record(Metrics.ROOT_LATENCY, -5);
+
+        assertEquals(100, metrics.samples(Metrics.ROOT_LATENCY));
+        assertEquals(0, metrics.samples(Metrics.SWITCH_LATENCY));
+        assertEquals(1000, metrics.percentile(Metrics.ROOT_LATENCY, 50));
+        assertEquals(1000, metrics.percentile(Metrics.ROOT_LATENCY, 98));
+        assertEquals(50000, metrics.percentile(Metrics.ROOT_LATENCY, 100));
+        assertEquals(-1, metrics.percentile(Metrics.SWITCH_LATENCY, 50));
+    }
+
+    @Test
+    public void dumpsCountersAndHistograms() {
+        Metrics metrics = new Metrics();
+        metrics.increment(Metrics.SWITCHES);
+        metrics.increment(Metrics.SWITCHES);
+        metrics.record(Metrics.SWITCH_LATENCY, 3000);
+
+        StringWriter out = new StringWriter();
+        metrics.dump(new PrintWriter(out));
+        String dump = out.toString();
+        assertTrue(dump, dump.contains("  switches: 2\n"));
+        assertTrue(dump, dump.contains("  switch: n=1 mean=3000 max=3000 p50=5000"));
+        assertTrue(dump, dump.contains("    <=5000:1\n"));
+        assertTrue(dump, dump.contains("  boot: n=0\n"));
+    }
+}
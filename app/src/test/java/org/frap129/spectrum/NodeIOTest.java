@@ -0,0 +1,116 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises node reads and writes against a fake sysfs tree.
+ */
+public class NodeIOTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRoot fake;
+    private NodeIO nodes;
+
+    @Before
+    public void setUp() {
+        fake = new FakeRoot(folder.getRoot());
+        nodes = fake.nodes;
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    @Test
+    public void read_stripsTrailingNewline() throws Exception {
+        fake.node("/proc/kpm_final", "interactive\n");
+        assertEquals("interactive", nodes.read("/proc/kpm_final"));
+    }
+
+    @Test
+    public void read_returnsNullForMissingNode() throws Exception {
+        assertNull(nodes.read("/proc/kpm_supported"));
+    }
+
+    @Test
+    public void read_handlesNodesLargerThanBuffer() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append(i % 10);
+        }
+        fake.node("/sys/kernel/big", builder.toString());
+        assertEquals(builder.toString(), nodes.read("/sys/kernel/big"));
+    }
+
+    @Test
+    public void write_replacesNodeContents() throws Exception {
+        String governor = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor";
+        fake.node(governor, "schedutil\n");
+        assertTrue(nodes.write(governor, "performance"));
+        assertEquals("performance", nodes.read(governor));
+    }
+
+    @Test
+    public void write_failsWhenParentIsMissing() throws Exception {
+        assertFalse(nodes.write("/sys/module/profiles_manager/parameters/kpm_profile", "1"));
+    }
+
+    @Test
+    public void quote_escapesSingleQuotes() throws Exception {
+        assertEquals("'it'\\''s'", NodeIO.quote("it's"));
+    }
+
+    @Test
+    public void deniedNodes_goThroughOneShellBatch() throws Exception {
+        fake.node("/sys/a", "1\n");
+        fake.node("/sys/b", "2\n");
+        fake.node("/sys/c", "3\n");
+        fake.deny("/sys/a");
+        fake.deny("/sys/c");
+        String[] values = nodes.readAll(new String[]{"/sys/a", "/sys/b", "/sys/c"});
+        assertEquals("1", values[0]);
+        assertEquals("2", values[1]);
+        assertEquals("3", values[2]);
+        assertEquals(1, fake.commands());
+
+        assertTrue(nodes.write("/sys/a", "4"));
+        assertEquals("4", nodes.read("/sys/a"));
+    }
+
+    @Test
+    public void write_failsWhenShellDies() throws Exception {
+        fake.node("/sys/a", "1\n");
+        fake.deny("/sys/a");
+        fake.failNextCommands(1);
+        assertFalse(nodes.write("/sys/a", "2"));
+        // The session reconnects for the next command
+        assertTrue(nodes.write("/sys/a", "2"));
+        assertEquals("2", nodes.read("/sys/a"));
+    }
+
+    @Test
+    public void writeAll_keepsOrderPastDeniedNodes() throws Exception {
+        fake.node("/sys/a", "0\n");
+        fake.node("/sys/b", "0\n");
+        fake.node("/sys/c", "0\n");
+        fake.deny("/sys/b");
+        assertTrue(nodes.writeAll(new String[]{"/sys/a", "/sys/b", "/sys/c"}, "1"));
+        assertEquals(Arrays.asList("/sys/a", "/sys/b", "/sys/c"), fake.writes());
+        assertEquals(1, fake.commands());
+        assertEquals("1", nodes.read("/sys/c"));
+    }
+}
@@ -0,0 +1,151 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks write ordering of the staged profile apply.
+ */
+public class ProfileApplierTest {
+
+    private static final String CPU = "/sys/devices/system/cpu";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRoot fake;
+
+    @Before
+    public void setUp() {
+        fake = new FakeRoot(folder.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    @Test
+    public void stages_keepRelatedWritesInFileOrder() throws Exception {
+        List<int[]> stages = ProfileApplier.stages(Arrays.asList(
+                CPU + "/cpu0/cpufreq/scaling_max_freq",
+                CPU + "/cpu4/cpufreq/scaling_max_freq",
+                "/sys/block/sda/queue/scheduler",
+                CPU + "/cpu0/cpufreq/scaling_min_freq",
+                CPU + "/cpu0/cpufreq/scaling_governor"));
+        assertEquals(3, stages.size());
+        assertArrayEquals(new int[]{0, 3}, stages.get(0));
+        assertArrayEquals(new int[]{3, 4}, stages.get(1));
+        assertArrayEquals(new int[]{4, 5}, stages.get(2));
+    }
+
+    @Test
+    public void stages_keepTunablesBehindGovernorOfAnotherCpu() throws Exception {
+        List<int[]> stages = ProfileApplier.stages(Arrays.asList(
+                CPU + "/cpu0/cpufreq/scaling_governor",
+                CPU + "/cpu1/cpufreq/interactive/hispeed_freq"));
+        assertEquals(2, stages.size());
+    }
+
+    @Test
+    public void related_coversAncestorsGovernorsAndHotplug() throws Exception {
+        assertTrue(ProfileApplier.related(CPU + "/cpu4/core_ctl/enable", CPU + "/cpu4/online"));
+        assertTrue(ProfileApplier.related(CPU + "/cpu4/cpufreq/scaling_governor",
+                CPU + "/cpu4/cpufreq/interactive/hispeed_freq"));
+        assertTrue(ProfileApplier.related(CPU + "/cpufreq/policy4/scaling_governor",
+                CPU + "/cpufreq/schedutil/rate_limit_us"));
+        assertTrue(ProfileApplier.related(CPU + "/cpu7/online", "/sys/block/sda/queue/scheduler"));
+        // cpu0/cpufreq and cpu1/cpufreq are links to the same policy on most devices
+        assertTrue(ProfileApplier.related(CPU + "/cpu0/cpufreq/scaling_governor",
+                CPU + "/cpu1/cpufreq/interactive/hispeed_freq"));
+        assertTrue(ProfileApplier.related(CPU + "/cpu1/cpufreq/scaling_min_freq",
+                CPU + "/cpu0/cpufreq/scaling_governor"));
+        assertFalse(ProfileApplier.related(CPU + "/cpufreq/policy0/scaling_max_freq",
+                CPU + "/cpufreq/policy4/scaling_max_freq"));
+    }
+
+    @Test
+    public void apply_replaysInterleavedWritesInOrder() throws Exception {
+        String enable = CPU + "/cpu4/core_ctl/enable";
+        String online = CPU + "/cpu4/online";
+        fake.node(enable, "1\n");
+        fake.node(online, "0\n");
+        ProfileApplier applier = new ProfileApplier(fake.nodes, fake.session, false, 4);
+        applier.apply(Arrays.asList(enable, online, enable), Arrays.asList("0", "1", "1"));
+        assertEquals(Arrays.asList(enable, online, enable), fake.writes());
+    }
+
+    @Test
+    public void apply_sharesShellBatchesAcrossDirectories() throws Exception {
+        List<String> paths = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String path = "/sys/dir" + (i % 25) + "/node" + i;
+            fake.node(path, "0\n");
+            fake.deny(path);
+            paths.add(path);
+            values.add("1");
+        }
+        ProfileApplier applier = new ProfileApplier(fake.nodes, fake.session, true, 4);
+        applier.apply(paths, values);
+        assertEquals(100, applier.getWritten());
+        // One read for the diff and one batch of writes
+        assertEquals(2, fake.commands());
+    }
+
+    @Test
+    public void apply_writesEverything() throws Exception {
+        String[] dirs = {"/sys/a", "/sys/b", "/sys/c", "/sys/a/x"};
+        for (String dir : dirs) {
+            fake.node(dir + "/node", "0\n");
+        }
+        NodeIO nodes = fake.nodes;
+        ProfileApplier applier = new ProfileApplier(nodes, fake.session, true, 3);
+        applier.apply(Arrays.asList("/sys/a/node", "/sys/b/node", "/sys/c/node", "/sys/a/x/node"),
+                Arrays.asList("1", "0", "1", "1"));
+        assertEquals(3, applier.getWritten());
+        assertEquals(1, applier.getSkipped());
+        for (String dir : new String[]{"/sys/a", "/sys/c", "/sys/a/x"}) {
+            assertEquals("1", nodes.read(dir + "/node"));
+        }
+    }
+
+    @Test
+    public void applyFile_reportsBrokenNodes() throws Exception {
+        fake.node("/sys/a/node", "0\n");
+        fake.node("/sys/b/node", "0\n");
+        fake.deny("/sys/b/node");
+        File source = new File(folder.getRoot(), "profile");
+        FakeRoot.write(source, "/sys/a/node 1\n/sys/b/node 1\n");
+        File plan = new File(folder.getRoot(), "profile.plan");
+        Metrics metrics = Metrics.get();
+        long written = metrics.count(Metrics.CUSTOM_WRITES);
+        long skipped = metrics.count(Metrics.CUSTOM_WRITES_SKIPPED);
+
+        assertTrue(ProfileApplier.applyFile(fake.nodes, fake.session, plan, source));
+        assertEquals("1", fake.nodes.read("/sys/b/node"));
+        assertEquals(written + 2, metrics.count(Metrics.CUSTOM_WRITES));
+        assertEquals(skipped, metrics.count(Metrics.CUSTOM_WRITES_SKIPPED));
+
+        fake.node("/sys/b/node", "0\n");
+        fake.breakWrites("/sys/b/node");
+        assertFalse(ProfileApplier.applyFile(fake.nodes, fake.session, plan, source));
+        assertEquals("0", fake.nodes.read("/sys/b/node"));
+        // /sys/a/node already held its value the second time
+        assertEquals(written + 2, metrics.count(Metrics.CUSTOM_WRITES));
+        assertEquals(skipped + 1, metrics.count(Metrics.CUSTOM_WRITES_SKIPPED));
+    }
+}
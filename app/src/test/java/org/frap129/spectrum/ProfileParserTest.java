@@ -0,0 +1,55 @@
+package org.frap129.spectrum;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks line validation in the streaming custom profile parser.
+ */
+public class ProfileParserTest {
+
+    private final List<String> writes = new ArrayList<>();
+
+    private final ProfileParser.Sink sink = new ProfileParser.Sink() {
+        @Override
+        public void onWrite(String path, String value) {
+            writes.add(path + "=" + value);
+        }
+    };
+
+    @Test
+    public void parse_emitsPathValuePairs() throws Exception {
+        String profile = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor schedutil\n"
+                + "  /proc/irq/45/smp_affinity_list\t0-3  \n"
+                + "/sys/block/sda/queue/scheduler cfq\n";
+        assertEquals(0, ProfileParser.parse(new StringReader(profile), sink));
+        assertEquals(Arrays.asList(
+                "/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor=schedutil",
+                "/proc/irq/45/smp_affinity_list=0-3",
+                "/sys/block/sda/queue/scheduler=cfq"), writes);
+    }
+
+    @Test
+    public void parse_skipsBlankLinesAndComments() throws Exception {
+        String profile = "\n# per-core tuning\n   \n/sys/kernel/foo 1\n";
+        assertEquals(0, ProfileParser.parse(new StringReader(profile), sink));
+        assertEquals(Arrays.asList("/sys/kernel/foo=1"), writes);
+    }
+
+    @Test
+    public void parse_rejectsInvalidLines() throws Exception {
+        String profile = "/sys/kernel/missing_value\n"
+                + "relative/path 1\n"
+                + "/data/local/tmp/x 1\n"
+                + "/sys/../data/x 1\n"
+                + "/sys/kernel/ok 1\n";
+        assertEquals(4, ProfileParser.parse(new StringReader(profile), sink));
+        assertEquals(Arrays.asList("/sys/kernel/ok=1"), writes);
+    }
+}
@@ -0,0 +1,126 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the switch pipeline against a fake KPM tree.
+ */
+public class ProfileSwitcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRoot fake;
+    private RootSession session;
+    private NodeIO nodes;
+    private ProfileSwitcher switcher;
+
+    @Before
+    public void setUp() {
+        fake = new FakeRoot(folder.getRoot());
+        session = fake.session;
+        nodes = fake.nodes;
+        switcher = new ProfileSwitcher(nodes, session, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    @Test
+    public void apply_writesProfileAndFinalGovernor() throws Exception {
+        fake.node(Utils.kpmPath, "-1\n");
+        fake.node(Utils.kpmFinal, "schedutil\n");
+        fake.node(Utils.cpuScalingGovernorPath, "interactive\n");
+        KernelCapabilities caps = new KernelCapabilities(true, true, true, "performance", "", "");
+
+        assertTrue(switcher.apply(caps, 2));
+        assertEquals("2", nodes.read(Utils.kpmPath));
+        assertEquals("schedutil", nodes.read(Utils.cpuScalingGovernorPath));
+    }
+
+    @Test
+    public void switchTo_coalescesRapidRequests() throws Exception {
+        // Keep the root worker busy so the first switch is still running
+        session.submit("sleep 0.3");
+        KernelCapabilities caps = new KernelCapabilities(true, false, true, "", "", "");
+        final List<Integer> applied = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        ProfileSwitcher.Callback callback = new ProfileSwitcher.Callback() {
+            @Override
+            public void onProfileApplied(int profile, boolean success) {
+                applied.add(profile);
+                if (profile == 3) done.countDown();
+            }
+        };
+
+        for (int profile = 0; profile < 4; profile++) {
+            switcher.switchTo(caps, profile, callback);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(3), applied.get(applied.size() - 1));
+        assertFalse(applied.contains(1));
+        assertFalse(applied.contains(2));
+    }
+
+    @Test
+    public void apply_failsWhenShellDies() throws Exception {
+        fake.node(Utils.kpmPath, "-1\n");
+        fake.deny(Utils.kpmPath);
+        KernelCapabilities caps = new KernelCapabilities(true, true, true, "", "", "");
+        fake.failNextCommands(1);
+        assertFalse(switcher.apply(caps, 1));
+
+        // Injected latency shows up in the switch time
+        fake.commandLatencyMicros = 50000;
+        long start = System.nanoTime();
+        assertTrue(switcher.apply(caps, 1));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MICROSECONDS.toNanos(50000));
+        assertEquals("1", nodes.read(Utils.kpmPath));
+    }
+
+    @Test
+    public void apply_switchesGovernorOnEveryCluster() throws Exception {
+        String[] policies = {"policy0", "policy4", "policy7"};
+        for (String policy : policies) {
+            String governor = "/sys/devices/system/cpu/cpufreq/" + policy + "/scaling_governor";
+            fake.node(governor, "interactive\n");
+            // The big clusters are often locked down, they must share one shell batch
+            if (!policy.equals("policy0")) {
+                fake.deny(governor);
+            }
+        }
+        fake.node(Utils.kpmPath, "-1\n");
+        fake.node(Utils.kpmFinal, "schedutil\n");
+        KernelCapabilities caps = new KernelCapabilities(true, true, true, "", "", "",
+                CpuTopology.discover(nodes));
+
+        assertTrue(switcher.apply(caps, 1));
+        assertEquals(1, fake.commands());
+        for (String policy : policies) {
+            assertEquals("schedutil",
+                    nodes.read("/sys/devices/system/cpu/cpufreq/" + policy + "/scaling_governor"));
+        }
+    }
+}
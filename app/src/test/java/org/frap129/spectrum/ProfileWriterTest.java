@@ -0,0 +1,71 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Applies profile writes to a fake sysfs tree.
+ */
+public class ProfileWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeRoot fake;
+    private RootSession session;
+    private NodeIO nodes;
+
+    @Before
+    public void setUp() throws IOException {
+        fake = new FakeRoot(folder.getRoot());
+        session = fake.session;
+        nodes = fake.nodes;
+        fake.node("/sys/kernel/a", "1\n");
+        fake.node("/sys/kernel/b", "2\n");
+    }
+
+    @After
+    public void tearDown() {
+        fake.close();
+    }
+
+    @Test
+    public void write_writesEverything() throws Exception {
+        ProfileWriter writer = new ProfileWriter(nodes, session);
+        writer.onWrite("/sys/kernel/a", "1");
+        writer.onWrite("/sys/kernel/missing/c", "1");
+        writer.flush();
+        assertEquals(1, writer.getWritten());
+        assertEquals(1, writer.getFailed());
+    }
+
+    @Test
+    public void deniedWrites_keepFileOrder() throws Exception {
+        String policy = "/sys/devices/system/cpu/cpufreq/policy0";
+        fake.node(policy + "/scaling_governor", "schedutil\n");
+        fake.node(policy + "/scaling_min_freq", "300000\n");
+        fake.node(policy + "/scaling_max_freq", "1800000\n");
+        fake.deny(policy + "/scaling_governor");
+
+        ProfileWriter writer = new ProfileWriter(nodes, session);
+        writer.onWrite(policy + "/scaling_governor", "interactive");
+        writer.onWrite(policy + "/scaling_min_freq", "400000");
+        writer.onWrite(policy + "/scaling_max_freq", "1700000");
+        writer.flush();
+        assertEquals(0, writer.getFailed());
+        List<String> writes = fake.writes();
+        assertEquals(Arrays.asList(
+                policy + "/scaling_governor", policy + "/scaling_min_freq", policy + "/scaling_max_freq"),
+                writes);
+        assertEquals("interactive", nodes.read(policy + "/scaling_governor"));
+    }
+}
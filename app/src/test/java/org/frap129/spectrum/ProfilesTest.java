@@ -0,0 +1,105 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the profile registry never confuses ids by substring matching.
+ */
+public class ProfilesTest {
+
+    @After
+    public void tearDown() {
+        Profiles.define(null);
+    }
+
+    @Test
+    public void parsesKernelOutputExactly() {
+        assertEquals(Profiles.BALANCE, Profiles.parseKernel("0"));
+        assertEquals(Profiles.GAMING, Profiles.parseKernel("3\n"));
+        assertEquals(Profiles.NONE, Profiles.parseKernel("-1"));
+        assertEquals(Profiles.NONE, Profiles.parseKernel(""));
+        assertEquals(Profiles.NONE, Profiles.parseKernel(null));
+        // Used to match "0" and "1" and come out as balance
+        assertEquals(Profiles.CUSTOM, Profiles.parseKernel("10"));
+        assertEquals(Profiles.CUSTOM, Profiles.parseKernel("custom"));
+    }
+
+    @Test
+    public void buildsDisabledMasks() {
+        long mask = Profiles.parseDisabled("gaming, performance,unknown");
+        assertTrue(Profiles.isDisabled(mask, Profiles.GAMING));
+        assertTrue(Profiles.isDisabled(mask, Profiles.PERFORMANCE));
+        assertFalse(Profiles.isDisabled(mask, Profiles.BALANCE));
+        assertFalse(Profiles.isDisabled(mask, Profiles.CUSTOM));
+
+        assertEquals(1L << 2 | 1L << 40, Profiles.parseDisabled("2,40"));
+        assertEquals(0, Profiles.parseDisabled(""));
+        assertEquals(0, Profiles.parseDisabled(null));
+    }
+
+    @Test
+    public void decodesCurrentAndLegacyValues() {
+        assertEquals(Profiles.BATTERY, Profiles.decode(Profiles.BATTERY));
+        assertEquals(Profiles.CUSTOM, Profiles.decode(Profiles.CUSTOM));
+        assertEquals(Profiles.BALANCE, Profiles.decode("balanced"));
+        assertEquals(Profiles.PERFORMANCE, Profiles.decode("1"));
+        assertEquals(Profiles.CUSTOM, Profiles.decode("custom"));
+        assertEquals(Profiles.NONE, Profiles.decode("-1"));
+        assertEquals(Profiles.NONE, Profiles.decode(null));
+    }
+
+    @Test
+    public void cyclesThroughEnabledProfiles() {
+        long noGaming = Profiles.parseDisabled("gaming");
+        assertEquals(Profiles.PERFORMANCE, Profiles.next(Profiles.BALANCE, 0));
+        assertEquals(Profiles.BALANCE, Profiles.next(Profiles.BATTERY, noGaming));
+        assertEquals(Profiles.BALANCE, Profiles.next(Profiles.CUSTOM, 0));
+        assertEquals(Profiles.PERFORMANCE,
+                Profiles.next(Profiles.CUSTOM, Profiles.parseDisabled("balance")));
+    }
+
+    @Test
+    public void looksProfilesUpById() {
+        assertEquals("gaming", Profiles.get(Profiles.GAMING).name);
+        assertEquals(Profiles.custom, Profiles.get(Profiles.CUSTOM));
+        assertNull(Profiles.get(Profiles.count()));
+        assertNull(Profiles.get(Profiles.NONE));
+        assertEquals(Profiles.custom, Profiles.resolve(Profiles.count(), 0));
+        assertEquals(Profiles.custom,
+                Profiles.resolve(Profiles.GAMING, Profiles.parseDisabled("gaming")));
+        assertEquals("battery", Profiles.resolve(Profiles.BATTERY, 0).name);
+    }
+
+    @Test
+    public void definesProfilesFromTheKernel() {
+        Profiles.define("0:balance\n1:thermal:#112233:Keeps the skin cool\n"
+                + "5:audio:80ff0000\nbogus\n70:toolarge\n3:");
+        assertEquals(6, Profiles.count());
+        assertTrue(Profiles.isClassic(Profiles.get(Profiles.BALANCE)));
+        assertEquals("", Profiles.get(Profiles.BALANCE).description);
+
+        Profiles.Profile thermal = Profiles.get(1);
+        assertEquals("Thermal", thermal.label);
+        assertFalse(Profiles.isClassic(thermal));
+        assertEquals(0xff112233, thermal.argb);
+        assertEquals("Keeps the skin cool", thermal.description);
+        assertEquals(0x80ff0000, Profiles.get(5).argb);
+        assertNull(Profiles.get(Profiles.GAMING));
+
+        // Undefined ids are skipped and names resolve to the kernel's ids
+        assertEquals(5, Profiles.next(1, 0));
+        assertEquals(0, Profiles.next(5, 0));
+        assertEquals(5, Profiles.idOf("audio"));
+        assertEquals(Profiles.NONE, Profiles.idOf("gaming"));
+        assertEquals(Profiles.CUSTOM, Profiles.parseKernel("3"));
+
+        Profiles.define("no profiles here");
+        assertEquals("gaming", Profiles.get(Profiles.GAMING).name);
+    }
+}
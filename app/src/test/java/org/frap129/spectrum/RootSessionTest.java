@@ -0,0 +1,89 @@
+package org.frap129.spectrum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the root session against a plain /bin/sh stand-in.
+ */
+public class RootSessionTest {
+
+    private RootSession session;
+
+    @Before
+    public void setUp() {
+        session = new RootSession("/bin/sh");
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+    @Test
+    public void run_capturesOutputPerCommand() throws Exception {
+        assertEquals(Arrays.asList("one", "two"), session.run("echo one", "echo two"));
+        assertEquals(Arrays.asList("three"), session.run("echo three"));
+    }
+
+    @Test
+    public void run_keepsOutputWithoutTrailingNewline() throws Exception {
+        assertEquals(Arrays.asList("partial"), session.run("printf partial"));
+    }
+
+    @Test
+    public void run_ignoresStderr() throws Exception {
+        assertEquals(Arrays.asList("out"), session.run("echo err 1>&2", "echo out"));
+    }
+
+    @Test
+    public void exec_reportsExitCode() throws Exception {
+        assertTrue(session.exec(RootSession.DEFAULT_TIMEOUT_MS, "true").isSuccess());
+        RootSession.Result result = session.exec(RootSession.DEFAULT_TIMEOUT_MS, "false");
+        assertNotNull(result);
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    public void run_keepsShellStateBetweenCalls() throws Exception {
+        session.run("SPECTRUM_TEST=kept");
+        assertEquals(Arrays.asList("kept"), session.run("echo $SPECTRUM_TEST"));
+    }
+
+    @Test
+    public void exec_timesOutAndRecovers() throws Exception {
+        assertNull(session.exec(200, "sleep 5"));
+        assertEquals(Arrays.asList("alive"), session.run("echo alive"));
+    }
+
+    @Test
+    public void exec_timesQueuedCommandsFromTheirStart() throws Exception {
+        // A healthy batch ahead outlasts the timeout of the one queued behind it
+        Future<RootSession.Result> slow = session.submit("sleep 0.4", "echo slow");
+        RootSession.Result result = session.exec(300, "echo queued");
+        assertNotNull(result);
+        assertEquals(Arrays.asList("queued"), result.output);
+        assertEquals(Arrays.asList("slow"), slow.get().output);
+    }
+
+    @Test
+    public void submit_runsQueuedCommandsInOrder() throws Exception {
+        Future<RootSession.Result> first = session.submit("echo a");
+        Future<RootSession.Result> second = session.submit("echo b");
+        List<String> a = first.get().output;
+        List<String> b = second.get().output;
+        assertEquals(Arrays.asList("a"), a);
+        assertEquals(Arrays.asList("b"), b);
+    }
+}
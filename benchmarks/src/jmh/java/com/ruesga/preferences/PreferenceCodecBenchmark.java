@@ -0,0 +1,60 @@
+package com.ruesga.preferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Marshalling of values crossing the preferences provider, which replaced
+// the old marshallSet/unmarshallSet pair.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreferenceCodecBenchmark {
+
+    @Param({"4", "64"})
+    public int setSize;
+
+    private Set<String> mSet;
+    private byte[] mEncodedSet;
+    private byte[] mEncodedInt;
+
+    @Setup
+    public void setUp() {
+        mSet = new HashSet<>();
+        for (int i = 0; i < setSize; i++) {
+            mSet.add("/sys/devices/system/cpu/cpufreq/policy" + i + "/scaling_governor");
+        }
+        mEncodedSet = PreferenceCodec.encode(mSet);
+        mEncodedInt = PreferenceCodec.encode(2);
+    }
+
+    @Benchmark
+    public byte[] encodeSet() {
+        return PreferenceCodec.encode(mSet);
+    }
+
+    @Benchmark
+    public Object decodeSet() {
+        return PreferenceCodec.decode(mEncodedSet);
+    }
+
+    // The active profile, the value that crosses the provider most often
+    @Benchmark
+    public byte[] encodeInt() {
+        return PreferenceCodec.encode(2);
+    }
+
+    @Benchmark
+    public Object decodeInt() {
+        return PreferenceCodec.decode(mEncodedInt);
+    }
+}
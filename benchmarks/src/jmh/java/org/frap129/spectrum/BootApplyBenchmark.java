@@ -0,0 +1,111 @@
+package org.frap129.spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+// The boot apply of a custom profile against a fake kernel tree, with the
+// node and su latencies a phone shows injected. Every iteration starts from
+// the stock values so the diff never lets writes be skipped.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BootApplyBenchmark {
+
+    @Param({"200"})
+    public int lines;
+
+    // Latency of one direct node write
+    @Param({"0", "100"})
+    public long writeLatencyMicros;
+
+    // Latency of one su round trip
+    @Param({"2000"})
+    public long commandLatencyMicros;
+
+    // Every nth node needs root, 0 for none
+    @Param({"0", "4"})
+    public int deniedEvery;
+
+    private File mDir;
+    private FakeRoot mFake;
+    private File mSource;
+    private File mPlan;
+    private String mProfile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("spectrum", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mFake = new FakeRoot(new File(mDir, "root"));
+        mFake.writeLatencyMicros = writeLatencyMicros;
+        mFake.commandLatencyMicros = commandLatencyMicros;
+
+        mProfile = ProfileParserBenchmark.generate(lines);
+        mSource = new File(mDir, "profile");
+        Writer out = new OutputStreamWriter(new FileOutputStream(mSource), "UTF-8");
+        try {
+            out.write(mProfile);
+        } finally {
+            out.close();
+        }
+        mPlan = new File(mDir, "profile.plan");
+        resetNodes();
+        final int[] index = {0};
+        ProfileParser.parse(new StringReader(mProfile), new ProfileParser.Sink() {
+            @Override
+            public void onWrite(String path, String value) {
+                if (deniedEvery > 0 && index[0]++ % deniedEvery == 0) {
+                    mFake.deny(path);
+                }
+            }
+        });
+    }
+
+    @Setup(Level.Invocation)
+    public void resetNodes() throws IOException {
+        ProfileParser.parse(new StringReader(mProfile), new ProfileParser.Sink() {
+            @Override
+            public void onWrite(String path, String value) throws IOException {
+                mFake.node(path, "0\n");
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFake.close();
+        delete(mDir);
+    }
+
+    @Benchmark
+    public boolean applyFile() {
+        return ProfileApplier.applyFile(mFake.nodes, mFake.session, mPlan, mSource);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
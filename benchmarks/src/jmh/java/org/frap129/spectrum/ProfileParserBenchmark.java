@@ -0,0 +1,138 @@
+package org.frap129.spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Custom profile loading: the line parser on its own, compiling a profile
+// file into a plan, loading an up to date plan the way a boot apply does,
+// and splitting the writes into apply stages.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProfileParserBenchmark {
+
+    // Lines in the generated profile, real ones range from a few dozen to a
+    // few hundred
+    @Param({"50", "500"})
+    public int lines;
+
+    private String mProfile;
+    private File mSource;
+    private File mPlan;
+    private byte[] mHash;
+
+    @Setup
+    public void setUp() throws IOException {
+        mProfile = generate(lines);
+        mSource = File.createTempFile("spectrum", ".profile");
+        Writer out = new OutputStreamWriter(new FileOutputStream(mSource), "UTF-8");
+        try {
+            out.write(mProfile);
+        } finally {
+            out.close();
+        }
+        mPlan = File.createTempFile("spectrum", ".plan");
+        CompiledProfile.compile(mSource).save(mPlan);
+        mHash = CompiledProfile.hash(mSource);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSource.delete();
+        mPlan.delete();
+    }
+
+    @Benchmark
+    public int parse(final Blackhole blackhole) throws IOException {
+        return ProfileParser.parse(new StringReader(mProfile), new ProfileParser.Sink() {
+            @Override
+            public void onWrite(String path, String value) {
+                blackhole.consume(path);
+                blackhole.consume(value);
+            }
+        });
+    }
+
+    @Benchmark
+    public CompiledProfile compile() throws IOException {
+        return CompiledProfile.compile(mSource);
+    }
+
+    @Benchmark
+    public CompiledProfile loadPlan() {
+        return CompiledProfile.load(mPlan, mHash);
+    }
+
+    @Benchmark
+    public CompiledProfile loadOrCompile() throws IOException {
+        return CompiledProfile.loadOrCompile(mPlan, mSource);
+    }
+
+    @Benchmark
+    public List<int[]> stages() throws IOException {
+        final List<String> paths = new ArrayList<>();
+        ProfileParser.parse(new StringReader(mProfile), new ProfileParser.Sink() {
+            @Override
+            public void onWrite(String path, String value) {
+                paths.add(path);
+            }
+        });
+        return ProfileApplier.stages(paths);
+    }
+
+    // Method that writes a profile shaped like the ones kernels ship: governor
+    // and frequency nodes per policy, governor tunables, block and vm nodes,
+    // with a comment and a blank line every so often
+    static String generate(int lines) {
+        StringBuilder profile = new StringBuilder(lines * 64);
+        for (int i = 0; i < lines; i++) {
+            int policy = (i / 8) % 8;
+            String cpufreq = "/sys/devices/system/cpu/cpufreq/policy" + policy;
+            switch (i % 8) {
+                case 0:
+                    profile.append("# Cluster ").append(policy).append('\n');
+                    break;
+                case 1:
+                    profile.append(cpufreq).append("/scaling_governor schedutil\n");
+                    break;
+                case 2:
+                    profile.append(cpufreq).append("/scaling_min_freq ").append(300000 + i).append('\n');
+                    break;
+                case 3:
+                    profile.append(cpufreq).append("/scaling_max_freq\t").append(1800000 + i).append('\n');
+                    break;
+                case 4:
+                    profile.append(cpufreq).append("/schedutil/up_rate_limit_us ").append(i).append('\n');
+                    break;
+                case 5:
+                    profile.append("/sys/block/sda/queue/read_ahead_kb 128\n");
+                    break;
+                case 6:
+                    profile.append("/proc/sys/vm/swappiness ").append(i % 100).append("  \n");
+                    break;
+                default:
+                    profile.append('\n');
+                    break;
+            }
+        }
+        return profile.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package org.frap129.spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// Profile state resolution as the quick settings tile does it on every
+// update and click, and parsing the definitions a kernel publishes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProfilesBenchmark {
+
+    // Profiles the kernel defines, 0 keeps the classic four
+    @Param({"0", "8", "32"})
+    public int profiles;
+
+    private String mDefinitions;
+    private String mDisabledList;
+    private long mDisabled;
+    private int mId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder definitions = new StringBuilder();
+        for (int id = 0; id < profiles; id++) {
+            if (id > 0) {
+                definitions.append(';');
+            }
+            definitions.append(id).append(":profile").append(id)
+                    .append(":#ff").append(String.format("%06x", id * 0x010203))
+                    .append(":Profile number ").append(id);
+        }
+        mDefinitions = profiles > 0 ? definitions.toString() : null;
+        Profiles.define(mDefinitions);
+        mDisabledList = profiles > 2 ? "1,profile2" : "1,battery";
+        mDisabled = Profiles.parseDisabled(mDisabledList);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Profiles.define(null);
+    }
+
+    // What updating the tile resolves: the stored id to what to show
+    @Benchmark
+    public Profiles.Profile resolve() {
+        mId = Profiles.next(mId, 0);
+        return Profiles.resolve(mId, mDisabled);
+    }
+
+    // What a tile click resolves: the profile after the active one
+    @Benchmark
+    public int next() {
+        mId = Profiles.next(mId, mDisabled);
+        return mId;
+    }
+
+    @Benchmark
+    public long parseDisabled() {
+        return Profiles.parseDisabled(mDisabledList);
+    }
+
+    @Benchmark
+    public Profiles.Profile[] parseDefinitions() {
+        return Profiles.parseDefinitions(mDefinitions);
+    }
+}
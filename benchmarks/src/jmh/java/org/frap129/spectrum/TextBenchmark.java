@@ -0,0 +1,92 @@
+package org.frap129.spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Shell output joining and the custom descriptions file, which replaced the
+// old readString and getCustomDesc helpers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TextBenchmark {
+
+    private List<String> mShellOutput;
+    private String mDescriptionsText;
+    private File mSource;
+    private File mCache;
+    private CustomDescriptions mDescriptions;
+
+    @Setup
+    public void setUp() throws IOException {
+        // getprop and cat output is usually a single short line, sometimes a few
+        mShellOutput = new ArrayList<>();
+        mShellOutput.add("performance");
+        mShellOutput.add("interactive ondemand userspace powersave schedutil");
+        mShellOutput.add("");
+
+        StringBuilder text = new StringBuilder();
+        for (String name : new String[]{"Balance", "Performance", "Battery", "Gaming"}) {
+            text.append(name).append(": Tuned by the kernel for ").append(name.toLowerCase())
+                    .append(", see the kernel thread for details\n");
+        }
+        text.append("this line has no colon\n");
+        mDescriptionsText = text.toString();
+
+        mSource = File.createTempFile("spectrum", ".descriptions");
+        Writer out = new OutputStreamWriter(new FileOutputStream(mSource), "UTF-8");
+        try {
+            out.write(mDescriptionsText);
+        } finally {
+            out.close();
+        }
+        mCache = File.createTempFile("spectrum", ".cache");
+        mCache.delete();
+        mDescriptions = new CustomDescriptions(mSource, mCache);
+        mDescriptions.load();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSource.delete();
+        mCache.delete();
+    }
+
+    @Benchmark
+    public String listToString() {
+        return Utils.listToString(mShellOutput);
+    }
+
+    @Benchmark
+    public Map<String, String> parseDescriptions() throws IOException {
+        return CustomDescriptions.parse(new StringReader(mDescriptionsText));
+    }
+
+    // What every screen open after the first costs: a stat of the file
+    @Benchmark
+    public Map<String, String> loadDescriptionsCached() {
+        return mDescriptions.load();
+    }
+
+    // What a cold process costs: the parsed copy read back from the files dir
+    @Benchmark
+    public Map<String, String> loadDescriptionsFromDisk() {
+        return new CustomDescriptions(mSource, mCache).load();
+    }
+}